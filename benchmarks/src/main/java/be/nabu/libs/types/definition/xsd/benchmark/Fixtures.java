@@ -0,0 +1,126 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.definition.xsd.Company;
+import be.nabu.libs.types.definition.xsd.TestWideType;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.EnumerationProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The type shapes the marshaller is benchmarked against, the shapes that are also tested come from the test jar
+ */
+public class Fixtures {
+	
+	public static final String NAMESPACE = "http://example.com/benchmark";
+	
+	private static SimpleType<String> string() {
+		return SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class);
+	}
+	
+	public static ComplexType small() {
+		return new BeanType<Company>(Company.class);
+	}
+	
+	/**
+	 * A single type with a lot of fields
+	 */
+	public static ComplexType wide(int fields) {
+		return TestWideType.newWideType(fields);
+	}
+	
+	/**
+	 * A single type with a lot of fields that are grouped in large choices
+	 */
+	public static ComplexType wideChoice(int fields) {
+		return TestWideType.newWideChoiceType(fields);
+	}
+	
+	/**
+	 * Anonymous types nested in one another
+	 */
+	public static ComplexType deep(int depth) {
+		Structure root = new Structure();
+		root.setName("deep");
+		root.setNamespace(NAMESPACE);
+		Structure parent = root;
+		for (int i = 0; i < depth; i++) {
+			parent.add(new SimpleElementImpl<String>("value" + i, string(), parent));
+			Structure child = new Structure();
+			parent.add(new ComplexElementImpl("level" + i, child, parent));
+			parent = child;
+		}
+		return root;
+	}
+	
+	/**
+	 * Named types that each live in their own namespace and reference the types in the next namespaces, this generates an attachment per namespace
+	 */
+	public static ComplexType namespaces(int namespaces, int fields) {
+		List<Structure> types = new ArrayList<Structure>();
+		for (int i = 0; i < namespaces; i++) {
+			Structure structure = new Structure();
+			structure.setName("type" + i);
+			structure.setNamespace(NAMESPACE + "/" + i);
+			for (int j = 0; j < fields; j++) {
+				structure.add(new SimpleElementImpl<String>("field" + j, string(), structure));
+			}
+			types.add(structure);
+		}
+		for (int i = 0; i < namespaces; i++) {
+			for (int j = i + 1; j < Math.min(namespaces, i + 4); j++) {
+				types.get(i).add(new ComplexElementImpl("reference" + j, types.get(j), types.get(i)));
+			}
+		}
+		Structure root = new Structure();
+		root.setName("namespaces");
+		root.setNamespace(NAMESPACE);
+		for (int i = 0; i < namespaces; i++) {
+			root.add(new ComplexElementImpl("type" + i, types.get(i), root));
+		}
+		return root;
+	}
+	
+	/**
+	 * Elements that restrict a string to a large set of values
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ComplexType enumerations(int elements, int values) {
+		Structure structure = new Structure();
+		structure.setName("enumerations");
+		structure.setNamespace(NAMESPACE);
+		for (int i = 0; i < elements; i++) {
+			List<String> enumeration = new ArrayList<String>();
+			for (int j = 0; j < values; j++) {
+				enumeration.add("value" + i + "-" + j);
+			}
+			structure.add(new SimpleElementImpl<String>("enumeration" + i, string(), structure, new ValueImpl(new EnumerationProperty(), enumeration)));
+		}
+		return structure;
+	}
+}
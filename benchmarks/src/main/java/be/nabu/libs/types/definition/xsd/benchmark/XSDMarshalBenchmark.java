@@ -0,0 +1,121 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.definition.xsd.AttachmentProvider;
+import be.nabu.libs.types.definition.xsd.XSDDefinitionMarshaller;
+
+/**
+ * Measures XSDDefinitionMarshaller.marshal for different type shapes.
+ * Build with "mvn package" in this module and run "java -jar target/benchmarks.jar -prof gc" (or run the main method) to get ops/s and the allocated bytes/op
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XSDMarshalBenchmark {
+
+	@Param({ "small", "wide", "wideChoice", "deep", "namespaces", "enumerations" })
+	private String shape;
+	
+	@Param({ "false", "true" })
+	private boolean streaming;
+	
+	private ComplexType type;
+	
+	private XSDDefinitionMarshaller marshaller;
+	
+	@Setup
+	public void setUp() {
+		if (shape.equals("small")) {
+			type = Fixtures.small();
+		}
+		else if (shape.equals("wide")) {
+			type = Fixtures.wide(5000);
+		}
+		else if (shape.equals("wideChoice")) {
+			type = Fixtures.wideChoice(5000);
+		}
+		else if (shape.equals("deep")) {
+			type = Fixtures.deep(100);
+		}
+		else if (shape.equals("namespaces")) {
+			type = Fixtures.namespaces(50, 20);
+		}
+		else if (shape.equals("enumerations")) {
+			type = Fixtures.enumerations(20, 250);
+		}
+		else {
+			throw new IllegalArgumentException("Unknown shape: " + shape);
+		}
+		// the marshaller can be shared, all the state lives in the context of a single run
+		marshaller = new XSDDefinitionMarshaller();
+		marshaller.setStreaming(streaming);
+		marshaller.setAttachmentProvider(new DiscardingAttachmentProvider());
+	}
+	
+	@Benchmark
+	public int marshal() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		return output.size();
+	}
+	
+	public static void main(String...args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+			.include(XSDMarshalBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class)
+			.build()).run();
+	}
+	
+	private static class DiscardingAttachmentProvider implements AttachmentProvider {
+		@Override
+		public OutputStream getOutput(String namespace) throws IOException {
+			return new ByteArrayOutputStream();
+		}
+		@Override
+		public URI getURI(String namespace) {
+			return URI.create("attachments:/" + Integer.toHexString(namespace.hashCode()));
+		}
+	}
+}
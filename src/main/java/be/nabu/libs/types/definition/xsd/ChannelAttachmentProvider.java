@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An attachment provider that can also accept the attachments as a channel, serialized schemas (e.g. from the cache) are then written without going through streams
+ * If the schema was loaded from an XSDSchemaStore, the stored files are transferred to the channel with FileChannel.transferTo() so the content is not copied through the heap
+ */
+public interface ChannelAttachmentProvider extends AttachmentProvider {
+	/**
+	 * The channel is closed by the caller once the attachment is written
+	 */
+	public WritableByteChannel getChannel(String namespace) throws IOException;
+}
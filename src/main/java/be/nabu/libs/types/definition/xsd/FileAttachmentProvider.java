@@ -0,0 +1,87 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes each attachment to a file in a directory, the schema locations are relative so the directory can be moved as a whole
+ * The name of the root in a zip bundle (schema.xsd) is never used for an attachment so the root can be written next to them
+ */
+public class FileAttachmentProvider implements ChannelAttachmentProvider {
+
+	private Path directory;
+	private Map<String, URI> uris = new HashMap<String, URI>();
+	private Set<String> names = new HashSet<String>();
+	
+	public FileAttachmentProvider(Path directory) {
+		this.directory = directory;
+		names.add(XSDDefinitionMarshaller.BUNDLE_ROOT.substring(0, XSDDefinitionMarshaller.BUNDLE_ROOT.lastIndexOf('.')));
+	}
+	
+	@Override
+	public OutputStream getOutput(String namespace) throws IOException {
+		return new BufferedOutputStream(Files.newOutputStream(getPath(namespace)));
+	}
+
+	@Override
+	public WritableByteChannel getChannel(String namespace) throws IOException {
+		return FileChannel.open(getPath(namespace), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	}
+
+	/**
+	 * The attachments can be written concurrently so the names are assigned under a lock
+	 */
+	@Override
+	public synchronized URI getURI(String namespace) {
+		URI uri = uris.get(namespace);
+		if (uri == null) {
+			String name = XSDDefinitionMarshaller.getFileName(namespace);
+			String unique = name;
+			for (int i = 1; !names.add(unique); i++) {
+				unique = name + i;
+			}
+			uri = URI.create(unique + ".xsd");
+			uris.put(namespace, uri);
+		}
+		return uri;
+	}
+	
+	public Path getDirectory() {
+		return directory;
+	}
+	
+	/**
+	 * The file the attachment for the namespace is written to
+	 */
+	public Path getPath(String namespace) {
+		return directory.resolve(getURI(namespace).toString());
+	}
+}
@@ -0,0 +1,110 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The result of a lazy marshalling run: the root schema is built immediately, each attachment is built and serialized the first time it is requested
+ * This can be shared by multiple threads, the attachments are built one at a time
+ */
+public class LazyMarshalledSchema {
+	
+	private XSDDefinitionMarshaller marshaller;
+	private XSDMarshalContext context;
+	private byte [] root;
+	/**
+	 * The types that belong in each attachment
+	 */
+	private Map<String, TypeDiscovery.Declarations> types;
+	private Map<String, byte[]> attachments = new HashMap<String, byte[]>();
+	private Map<String, String> hashes = new HashMap<String, String>();
+	private String rootHash;
+	
+	LazyMarshalledSchema(XSDDefinitionMarshaller marshaller, XSDMarshalContext context, byte [] root, Map<String, TypeDiscovery.Declarations> types) {
+		this.marshaller = marshaller;
+		this.context = context;
+		this.root = root;
+		this.types = types;
+	}
+	
+	public byte [] getRoot() {
+		return root;
+	}
+	
+	public synchronized String getRootHash() {
+		if (rootHash == null) {
+			rootHash = MarshalledSchema.hash(root);
+		}
+		return rootHash;
+	}
+	
+	/**
+	 * The hash of the attachment content, this materializes the attachment if necessary
+	 */
+	public synchronized String getAttachmentHash(String namespace) throws IOException {
+		if (!hashes.containsKey(namespace)) {
+			byte [] attachment = getAttachment(namespace);
+			if (attachment == null) {
+				return null;
+			}
+			hashes.put(namespace, MarshalledSchema.hash(attachment));
+		}
+		return hashes.get(namespace);
+	}
+	
+	/**
+	 * The namespaces of the attachments that can be requested
+	 */
+	public Set<String> getNamespaces() {
+		return Collections.unmodifiableSet(types.keySet());
+	}
+	
+	/**
+	 * Returns null if the namespace is not an attachment of this schema
+	 */
+	public synchronized byte [] getAttachment(String namespace) throws IOException {
+		byte [] attachment = attachments.get(namespace);
+		if (attachment == null && types.containsKey(namespace)) {
+			// each attachment is built in its own context, like in a parallel build it only references the other namespaces
+			attachment = marshaller.serialize(marshaller.materialize(context.fork(namespace), namespace, types.get(namespace)));
+			attachments.put(namespace, attachment);
+		}
+		return attachment;
+	}
+	
+	public synchronized boolean isMaterialized(String namespace) {
+		return attachments.containsKey(namespace);
+	}
+	
+	/**
+	 * Writes the attachment to the output, this can be used to serve the uri returned by the attachment provider
+	 */
+	public void writeAttachment(String namespace, OutputStream output) throws IOException {
+		byte [] attachment = getAttachment(namespace);
+		if (attachment == null) {
+			throw new IllegalArgumentException("The namespace '" + namespace + "' is not an attachment of this schema");
+		}
+		output.write(attachment);
+	}
+}
@@ -0,0 +1,242 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.validation.Schema;
+
+/**
+ * The serialized result of a marshalling run: the root schema and the attachments (by namespace)
+ */
+public class MarshalledSchema {
+	
+	private byte [] root;
+	private Map<String, byte[]> attachments;
+	/**
+	 * The uris the attachment provider returned for the attachments when this was generated
+	 */
+	private Map<String, URI> uris;
+	/**
+	 * The hashes of the content, combined with canonical output these can be used as etag
+	 */
+	private String rootHash;
+	private Map<String, String> attachmentHashes = new LinkedHashMap<String, String>();
+	/**
+	 * The files that contain the uncompressed attachments, only known when the schema was loaded from a store
+	 */
+	private Map<String, Path> files = Collections.emptyMap();
+	/**
+	 * The gzipped content, only calculated when requested
+	 */
+	private byte [] compressedRoot;
+	private Map<String, byte[]> compressedAttachments;
+	/**
+	 * The compiled schema, only calculated when requested
+	 */
+	private Schema validationSchema;
+	
+	public MarshalledSchema(byte [] root, Map<String, byte[]> attachments, Map<String, URI> uris) {
+		this.root = root;
+		this.attachments = Collections.unmodifiableMap(new LinkedHashMap<String, byte[]>(attachments));
+		this.uris = Collections.unmodifiableMap(new LinkedHashMap<String, URI>(uris));
+		this.rootHash = hash(root);
+		for (Map.Entry<String, byte[]> attachment : this.attachments.entrySet()) {
+			attachmentHashes.put(attachment.getKey(), hash(attachment.getValue()));
+		}
+		this.attachmentHashes = Collections.unmodifiableMap(attachmentHashes);
+	}
+	
+	public byte [] getRoot() {
+		return root;
+	}
+	
+	public Map<String, byte[]> getAttachments() {
+		return attachments;
+	}
+	
+	public Map<String, URI> getURIs() {
+		return uris;
+	}
+	
+	public String getRootHash() {
+		return rootHash;
+	}
+	
+	public Map<String, String> getAttachmentHashes() {
+		return attachmentHashes;
+	}
+	
+	/**
+	 * Writes the attachments to the provider (if any) and the root to the output, the same way the marshaller does
+	 */
+	public void write(OutputStream output, AttachmentProvider attachmentProvider) throws IOException {
+		write(output, attachmentProvider, false);
+	}
+	
+	/**
+	 * The compressed content is calculated once so it can be served repeatedly
+	 */
+	public void write(OutputStream output, AttachmentProvider attachmentProvider, boolean compressed) throws IOException {
+		if (attachmentProvider != null) {
+			Map<String, byte[]> attachments = compressed ? getCompressedAttachments() : this.attachments;
+			for (String namespace : attachments.keySet()) {
+				// the content is already serialized, it can go straight to the channel
+				if (attachmentProvider instanceof ChannelAttachmentProvider) {
+					WritableByteChannel channel = ((ChannelAttachmentProvider) attachmentProvider).getChannel(namespace);
+					try {
+						Path file = compressed ? null : files.get(namespace);
+						if (file == null || !transfer(file, channel)) {
+							ByteBuffer buffer = ByteBuffer.wrap(attachments.get(namespace));
+							while (buffer.hasRemaining()) {
+								channel.write(buffer);
+							}
+						}
+					}
+					finally {
+						channel.close();
+					}
+				}
+				else {
+					OutputStream attachmentOutput = attachmentProvider.getOutput(namespace);
+					try {
+						attachmentOutput.write(attachments.get(namespace));
+					}
+					finally {
+						attachmentOutput.close();
+					}
+				}
+			}
+		}
+		output.write(compressed ? getCompressedRoot() : root);
+	}
+	
+	/**
+	 * Lets the kernel copy the file to the channel, returns false if the file no longer exists (e.g. the store replaced it)
+	 */
+	private static boolean transfer(Path file, WritableByteChannel channel) throws IOException {
+		FileChannel source;
+		try {
+			source = FileChannel.open(file, StandardOpenOption.READ);
+		}
+		catch (NoSuchFileException e) {
+			return false;
+		}
+		try {
+			long size = source.size();
+			long position = 0;
+			while (position < size) {
+				position += source.transferTo(position, size - position, channel);
+			}
+			return true;
+		}
+		finally {
+			source.close();
+		}
+	}
+	
+	/**
+	 * Set by the store, the files must contain exactly the attachments and must not be modified afterwards
+	 */
+	void setFiles(Map<String, Path> files) {
+		this.files = Collections.unmodifiableMap(new LinkedHashMap<String, Path>(files));
+	}
+	
+	public synchronized byte [] getCompressedRoot() throws IOException {
+		if (compressedRoot == null) {
+			compressedRoot = compress(root);
+		}
+		return compressedRoot;
+	}
+	
+	public synchronized Map<String, byte[]> getCompressedAttachments() throws IOException {
+		if (compressedAttachments == null) {
+			Map<String, byte[]> compressedAttachments = new LinkedHashMap<String, byte[]>();
+			for (Map.Entry<String, byte[]> attachment : attachments.entrySet()) {
+				compressedAttachments.put(attachment.getKey(), compress(attachment.getValue()));
+			}
+			this.compressedAttachments = Collections.unmodifiableMap(compressedAttachments);
+		}
+		return compressedAttachments;
+	}
+	
+	/**
+	 * The compiled schema that can be used to validate instances, the imports are resolved from the attachments in this schema
+	 * It is compiled once, the result is thread safe
+	 */
+	public synchronized Schema getValidationSchema() throws IOException {
+		if (validationSchema == null) {
+			validationSchema = MemorySchemaResolver.compile(root, attachments);
+		}
+		return validationSchema;
+	}
+	
+	private static byte [] compress(byte [] content) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(output);
+		gzip.write(content);
+		gzip.close();
+		return output.toByteArray();
+	}
+	
+	/**
+	 * Whether the provider still returns the same uris as the ones used to generate the schema
+	 */
+	boolean isValidFor(AttachmentProvider attachmentProvider) {
+		for (String namespace : uris.keySet()) {
+			URI current = attachmentProvider == null ? null : attachmentProvider.getURI(namespace);
+			if (current == null ? uris.get(namespace) != null : !current.equals(uris.get(namespace))) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * The hex encoded sha-256 of the content
+	 */
+	static String hash(byte [] content) {
+		try {
+			byte [] digest = MessageDigest.getInstance("SHA-256").digest(content);
+			StringBuilder builder = new StringBuilder();
+			for (byte single : digest) {
+				builder.append(Character.forDigit((single >> 4) & 0xf, 16)).append(Character.forDigit(single & 0xf, 16));
+			}
+			return builder.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			// every jvm has to support sha-256
+			throw new RuntimeException(e);
+		}
+	}
+}
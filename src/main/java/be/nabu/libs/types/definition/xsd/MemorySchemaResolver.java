@@ -0,0 +1,147 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.Map;
+
+import javax.xml.XMLConstants;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+
+import org.w3c.dom.ls.LSInput;
+import org.w3c.dom.ls.LSResourceResolver;
+import org.xml.sax.SAXException;
+
+/**
+ * Resolves the imports and includes of a generated schema from the serialized attachments (by namespace) instead of their schema location
+ * This means the schema can be compiled regardless of the attachment provider, nothing is read from disk or network
+ */
+class MemorySchemaResolver implements LSResourceResolver {
+
+	private Map<String, byte[]> attachments;
+	
+	MemorySchemaResolver(Map<String, byte[]> attachments) {
+		this.attachments = attachments;
+	}
+	
+	/**
+	 * A schema factory is not thread safe, so a new one is created for every compilation, the resulting schema is thread safe
+	 */
+	static Schema compile(byte [] root, Map<String, byte[]> attachments) throws IOException {
+		SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+		factory.setResourceResolver(new MemorySchemaResolver(attachments));
+		try {
+			return factory.newSchema(new StreamSource(new ByteArrayInputStream(root), XSDDefinitionMarshaller.BUNDLE_ROOT));
+		}
+		catch (SAXException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	@Override
+	public LSInput resolveResource(String type, String namespaceURI, String publicId, String systemId, String baseURI) {
+		// both for an import and an include the namespace is the one of the attachment
+		if (XMLConstants.W3C_XML_SCHEMA_NS_URI.equals(type) && attachments.containsKey(namespaceURI)) {
+			// the system id identifies the document for the factory, without one it would be parsed again for every import
+			return new MemoryInput(attachments.get(namespaceURI), systemId == null ? "attachments:/" + namespaceURI : systemId, publicId, baseURI);
+		}
+		return null;
+	}
+	
+	private static class MemoryInput implements LSInput {
+		private byte [] content;
+		private String systemId, publicId, baseURI;
+		
+		MemoryInput(byte [] content, String systemId, String publicId, String baseURI) {
+			this.content = content;
+			this.systemId = systemId;
+			this.publicId = publicId;
+			this.baseURI = baseURI;
+		}
+		
+		@Override
+		public Reader getCharacterStream() {
+			return null;
+		}
+		@Override
+		public void setCharacterStream(Reader characterStream) {
+			// the content is fixed
+		}
+		@Override
+		public InputStream getByteStream() {
+			return new ByteArrayInputStream(content);
+		}
+		@Override
+		public void setByteStream(InputStream byteStream) {
+			// the content is fixed
+		}
+		@Override
+		public String getStringData() {
+			return null;
+		}
+		@Override
+		public void setStringData(String stringData) {
+			// the content is fixed
+		}
+		@Override
+		public String getSystemId() {
+			return systemId;
+		}
+		@Override
+		public void setSystemId(String systemId) {
+			this.systemId = systemId;
+		}
+		@Override
+		public String getPublicId() {
+			return publicId;
+		}
+		@Override
+		public void setPublicId(String publicId) {
+			this.publicId = publicId;
+		}
+		@Override
+		public String getBaseURI() {
+			return baseURI;
+		}
+		@Override
+		public void setBaseURI(String baseURI) {
+			this.baseURI = baseURI;
+		}
+		@Override
+		public String getEncoding() {
+			return null;
+		}
+		@Override
+		public void setEncoding(String encoding) {
+			// taken from the xml declaration
+		}
+		@Override
+		public boolean getCertifiedText() {
+			return false;
+		}
+		@Override
+		public void setCertifiedText(boolean certifiedText) {
+			// not relevant
+		}
+	}
+}
@@ -0,0 +1,32 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Resolves the schemas that are imported or included by a schema that is being unmarshalled
+ */
+public interface SchemaProvider {
+	/**
+	 * The location is the (unresolved) schemaLocation of the import or include and may be null
+	 * Return null if the schema is not available
+	 */
+	public InputStream getInput(String namespace, String location) throws IOException;
+}
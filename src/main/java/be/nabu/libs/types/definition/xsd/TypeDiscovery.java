@@ -0,0 +1,272 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.definition.xsd.XSDDefinitionMarshaller.Particle;
+
+/**
+ * Walks the type graph the same way the marshaller does but without building anything, it only records which named types end up in which namespace
+ * The types are listed in the order the marshaller would define them
+ * For each namespace it also records where the types are defined relative to the content of that namespace, so the schema of a namespace can be built on its own in exactly the same order:
+ * - types that are referenced from the content of their own namespace are defined in place
+ * - types that are reached through another namespace are defined right after the reference (from the content of their namespace) that leads there, the references are numbered in the order they are written
+ * - types that are reached before anything of their namespace is written are defined at the top level
+ */
+class TypeDiscovery {
+	
+	private XSDDefinitionMarshaller marshaller;
+	private XSDMarshalContext context;
+	
+	private Map<String, Declarations> declarations = new LinkedHashMap<String, Declarations>();
+	private Set<String> discovered = new HashSet<String>();
+	
+	/**
+	 * The pending steps, like the marshaller we walk the graph with a work stack
+	 */
+	private Deque<Runnable> tasks = new ArrayDeque<Runnable>();
+	
+	/**
+	 * The amount of references from the content of each namespace to another namespace
+	 */
+	private Map<String, Integer> references = new HashMap<String, Integer>();
+	
+	/**
+	 * The references of each namespace that are being expanded, the innermost one is on top
+	 */
+	private Map<String, Deque<Integer>> origins = new HashMap<String, Deque<Integer>>();
+	
+	/**
+	 * The anonymous types that are being expanded with the namespace of the schema they are written in, like in the marshaller a type that is encountered while it is open is recursive
+	 */
+	private Map<ComplexType, String> open = new IdentityHashMap<ComplexType, String>();
+	
+	private boolean recursiveAcrossNamespaces;
+	
+	TypeDiscovery(XSDDefinitionMarshaller marshaller, XSDMarshalContext context) {
+		this.marshaller = marshaller;
+		this.context = context;
+	}
+	
+	Map<String, Declarations> discover(final be.nabu.libs.types.api.Element<?> root) {
+		final String namespace = context.getNamespace();
+		tasks.push(new Runnable() {
+			@Override
+			public void run() {
+				discover(root, namespace);
+			}
+		});
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+		return declarations;
+	}
+	
+	/**
+	 * Whether an anonymous type contains itself through another namespace, the marshaller then references a type in a schema that is built elsewhere so the namespaces can not be built on their own
+	 */
+	boolean isRecursiveAcrossNamespaces() {
+		return recursiveAcrossNamespaces;
+	}
+	
+	/**
+	 * The element is written in the schema of the given namespace
+	 */
+	private void discover(be.nabu.libs.types.api.Element<?> element, String namespace) {
+		Type type = element.getType();
+		if (type.getName() != null) {
+			define(type, namespace);
+		}
+		// anonymous simple types don't reference anything
+		else if (type instanceof ComplexType) {
+			expandAnonymous((ComplexType) type, namespace);
+		}
+	}
+	
+	private void expandAnonymous(final ComplexType type, String namespace) {
+		if (open.containsKey(type)) {
+			if (!isSameNamespace(open.get(type), namespace)) {
+				recursiveAcrossNamespaces = true;
+			}
+			return;
+		}
+		open.put(type, namespace);
+		tasks.push(new Runnable() {
+			@Override
+			public void run() {
+				open.remove(type);
+			}
+		});
+		expand(type, namespace);
+	}
+	
+	/**
+	 * The type is referenced from the schema of the given namespace
+	 */
+	private void define(Type type, String namespace) {
+		String targetNamespace = marshaller.getNamespace(context, type);
+		if (XSDDefinitionMarshaller.NAMESPACE.equals(targetNamespace)) {
+			return;
+		}
+		boolean foreign = !isSameNamespace(namespace, targetNamespace);
+		int reference = foreign ? nextReference(namespace) : -1;
+		String key = (type instanceof ComplexType ? "complexType:" : "simpleType:") + type.getNamespace() + ":" + marshaller.getTypeName(type, targetNamespace);
+		if (!discovered.add(key)) {
+			return;
+		}
+		Declarations target = declarations.get(targetNamespace);
+		if (target == null) {
+			target = new Declarations();
+			declarations.put(targetNamespace, target);
+		}
+		target.types.add(type);
+		if (foreign) {
+			Deque<Integer> targetOrigins = origins.get(targetNamespace);
+			if (targetOrigins == null || targetOrigins.isEmpty()) {
+				target.entries.add(type);
+			}
+			else {
+				target.addDetour(targetOrigins.peek(), type);
+			}
+		}
+		if (type instanceof ComplexType) {
+			// everything that is defined while the type is expanded is reached through this reference
+			if (foreign) {
+				final Deque<Integer> namespaceOrigins = getOrigins(namespace);
+				namespaceOrigins.push(reference);
+				tasks.push(new Runnable() {
+					@Override
+					public void run() {
+						namespaceOrigins.pop();
+					}
+				});
+			}
+			expand((ComplexType) type, targetNamespace);
+		}
+	}
+	
+	/**
+	 * The content of the type is written in the schema of the given namespace
+	 */
+	private void expand(ComplexType type, final String namespace) {
+		// the simple content is defined immediately, the rest is scheduled
+		if (type instanceof SimpleType) {
+			Type simpleType = type.get(ComplexType.SIMPLE_TYPE_VALUE).getType();
+			if (simpleType.getName() != null) {
+				define(simpleType, namespace);
+			}
+		}
+		// pushed in reverse: the super type and then the children
+		List<Particle> particles = marshaller.getParticles(type);
+		for (int i = particles.size() - 1; i >= 0; i--) {
+			List<be.nabu.libs.types.api.Element<?>> elements = particles.get(i).getElements();
+			for (int j = elements.size() - 1; j >= 0; j--) {
+				final be.nabu.libs.types.api.Element<?> element = elements.get(j);
+				tasks.push(new Runnable() {
+					@Override
+					public void run() {
+						discover(element, namespace);
+					}
+				});
+			}
+		}
+		if (marshaller.isUseExtension() && type.getSuperType() instanceof ComplexType) {
+			final ComplexType superType = (ComplexType) type.getSuperType();
+			tasks.push(new Runnable() {
+				@Override
+				public void run() {
+					if (superType.getName() == null) {
+						expandAnonymous(superType, namespace);
+					}
+					else {
+						define(superType, namespace);
+					}
+				}
+			});
+		}
+	}
+	
+	private int nextReference(String namespace) {
+		Integer reference = references.get(namespace);
+		references.put(namespace, reference == null ? 1 : reference + 1);
+		return reference == null ? 0 : reference;
+	}
+	
+	private Deque<Integer> getOrigins(String namespace) {
+		Deque<Integer> namespaceOrigins = origins.get(namespace);
+		if (namespaceOrigins == null) {
+			namespaceOrigins = new ArrayDeque<Integer>();
+			origins.put(namespace, namespaceOrigins);
+		}
+		return namespaceOrigins;
+	}
+	
+	private static boolean isSameNamespace(String namespace, String other) {
+		return namespace == null ? other == null : namespace.equals(other);
+	}
+	
+	/**
+	 * The named types that end up in the schema of a namespace
+	 */
+	static class Declarations {
+		private List<Type> types = new ArrayList<Type>();
+		private List<Type> entries = new ArrayList<Type>();
+		private Map<Integer, List<Type>> detours = new HashMap<Integer, List<Type>>();
+		
+		/**
+		 * All the types in the order they are defined
+		 */
+		List<Type> getTypes() {
+			return types;
+		}
+		/**
+		 * The types that are defined before anything else of the namespace is written
+		 */
+		List<Type> getEntries() {
+			return entries;
+		}
+		/**
+		 * The types that are reached through another namespace, keyed on the reference (from the content of this namespace) that leads there
+		 */
+		Map<Integer, List<Type>> getDetours() {
+			return detours;
+		}
+		private void addDetour(int reference, Type type) {
+			List<Type> types = detours.get(reference);
+			if (types == null) {
+				types = new ArrayList<Type>();
+				detours.put(reference, types);
+			}
+			types.add(type);
+		}
+	}
+}
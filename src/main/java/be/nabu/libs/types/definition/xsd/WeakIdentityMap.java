@@ -0,0 +1,95 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A thread safe map that compares its keys by identity and only holds them weakly, the jdk only has one or the other
+ * Like a WeakHashMap, the values should not strongly refer to their key or the entry is never removed
+ */
+class WeakIdentityMap<K, V> {
+	
+	private Map<IdentityReference<K>, V> entries = new HashMap<IdentityReference<K>, V>();
+	private ReferenceQueue<K> queue = new ReferenceQueue<K>();
+	
+	public synchronized V get(K key) {
+		purge();
+		return entries.get(new IdentityReference<K>(key, null));
+	}
+	
+	public synchronized void put(K key, V value) {
+		purge();
+		entries.put(new IdentityReference<K>(key, queue), value);
+	}
+	
+	public synchronized void remove(K key) {
+		purge();
+		entries.remove(new IdentityReference<K>(key, null));
+	}
+	
+	public synchronized void clear() {
+		purge();
+		entries.clear();
+	}
+	
+	public synchronized int size() {
+		purge();
+		return entries.size();
+	}
+	
+	/**
+	 * Removes the entries of the keys that were collected
+	 */
+	private void purge() {
+		Object reference;
+		while ((reference = queue.poll()) != null) {
+			entries.remove(reference);
+		}
+	}
+	
+	private static class IdentityReference<K> extends WeakReference<K> {
+		// the hash has to survive the key
+		private int hash;
+		
+		IdentityReference(K key, ReferenceQueue<K> queue) {
+			super(key, queue);
+			this.hash = System.identityHashCode(key);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (object == this) {
+				return true;
+			}
+			if (!(object instanceof IdentityReference)) {
+				return false;
+			}
+			Object key = get();
+			return key != null && key == ((IdentityReference<?>) object).get();
+		}
+	}
+}
@@ -17,28 +17,57 @@
 
 package be.nabu.libs.types.definition.xsd;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.lang.ref.SoftReference;
+import java.math.BigInteger;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.validation.Schema;
 
 import org.w3c.dom.Attr;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import be.nabu.libs.converter.ConverterFactory;
 import be.nabu.libs.converter.api.Converter;
 import be.nabu.libs.property.ValueUtils;
 import be.nabu.libs.property.api.Property;
 import be.nabu.libs.property.api.Value;
-import be.nabu.libs.types.TypeRegistryImpl;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.Attribute;
 import be.nabu.libs.types.api.ComplexType;
@@ -69,10 +98,10 @@ import be.nabu.libs.types.properties.ScopeProperty;
 
 
 /**
- * Currently there is one thing that is not supported: circular references back to the _original_ scheme
- * There are two solutions for this: also use the attachment provider to generate the main scheme (it is currently just serialized to the outputstream so there is no way to reference it with an uri)
- * Or alternatively have the main scheme _only_ the root element (no references to this allowed) and put everything else (complex types, simple types etc) in an attachment that is "included" instead of imported into the main scheme (and acts as import for the rest)
- * This file can then be referenced by attachments
+ * By default circular references back to the _original_ scheme are not supported: the main scheme is serialized to the outputstream so there is no way to reference it with an uri
+ * If this is needed, set splitRoot: the main scheme then _only_ contains the root element and everything else (complex types, simple types etc) is written to an attachment that is "included" instead of imported into the main scheme
+ * This attachment can then be imported by the other attachments
+ * Anonymous types that (indirectly) contain themselves are written once as a named type, regardless of this setting
  */
 public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 
@@ -83,20 +112,20 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 	private Converter converter = ConverterFactory.getInstance().getConverter();
 	
 	/**
-	 * used to keep track of which types were already marshalled
+	 * The context used by the stateful methods (define(), getSchema(), getAttachments()...) that predate the context-based ones
+	 * It is only filled in by the define() calls, marshal() always works on a fresh context so a shared marshaller does not keep the last document alive
+	 * The stateful methods are not thread safe, use define(XSDMarshalContext, ...) when the marshaller is shared
 	 */
-	private TypeRegistryImpl registry;
+	private XSDMarshalContext context;
+	
+	private AttachmentProvider attachmentProvider = null;
+	
+	private Executor attachmentExecutor = null;
 	
 	/**
-	 * You can either show the entire type in one namespace
-	 * Or you can reference other namespaces where necessary
-	 * Now suppose you reference a complex type from another namespace,
-	 * you can't just refer the user to a scheme detailing everything in that namespace as this might leak information
-	 * We need attachments that are specifically built to support this xsd
+	 * Optional listener that is notified of everything that is written, when not set there is no overhead
 	 */
-	private Map<String, Document> attachments = new LinkedHashMap<String, Document>();
-	
-	private AttachmentProvider attachmentProvider = null;
+	private XSDMarshalListener listener = null;
 
 	private boolean useExtension = false;
 	
@@ -105,24 +134,61 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 	private boolean includeSchemaLocation = true;
 	
 	/**
-	 * The namespace of this schema
+	 * When set, anonymous types that occur more than once in a schema are written once as a named type and referenced everywhere
+	 */
+	private boolean deduplicateAnonymousTypes = false;
+	
+	/**
+	 * When set, the prefixes, imports and declarations are ordered by content instead of by traversal so the output is byte-stable
+	 */
+	private boolean canonical = false;
+	
+	/**
+	 * When set, the schemas are written without indentation
+	 */
+	private boolean compact = false;
+	
+	/**
+	 * When set, everything that is written to an output stream (the root and the attachments) is gzipped
+	 */
+	private boolean compressed = false;
+	
+	/**
+	 * Kept here as well so the serializers that do not go through writeToStream() can honour it
+	 */
+	private boolean omitXMLDeclaration = false;
+	
+	/**
+	 * The name of the root schema in a zip bundle
 	 */
-	private String namespace;
+	public static final String BUNDLE_ROOT = "schema.xsd";
 	
 	/**
-	 * The root schema
+	 * Looking up the factory is the expensive part, creating an identity transformer from it is cheap
 	 */
-	private Document schema;
+	private static final TransformerFactory TRANSFORMER_FACTORY = TransformerFactory.newInstance();
+	
+	private static final MinOccursProperty MIN_OCCURS = new MinOccursProperty();
+	private static final NameProperty NAME = NameProperty.getInstance();
+	private static final NillableProperty NILLABLE = NillableProperty.getInstance();
+	@SuppressWarnings("rawtypes")
+	private static final EnumerationProperty ENUMERATION = new EnumerationProperty();
+	
+	private static final Value<?> [] NO_VALUES = new Value<?>[0];
+	private static final Value<?> NILLABLE_DEFAULT = new ValueImpl<Boolean>(NILLABLE, true);
 	
-	private Property<?> [] attributeWhitelist = new Property<?> [] {
-		new MinOccursProperty(),
+	/**
+	 * The classification of the properties is fixed, the arrays are small enough that a linear scan is cheaper than hashing
+	 */
+	private static final Property<?> [] attributeWhitelist = new Property<?> [] {
+		MIN_OCCURS,
 		new MaxOccursProperty(),
-		new NameProperty(),
-		new NillableProperty()
+		NAME,
+		NILLABLE
 	};
 	
 	@SuppressWarnings("rawtypes")
-	private Property<?> [] restrictionWhitelist = new Property<?> [] {
+	private static final Property<?> [] restrictionWhitelist = new Property<?> [] {
 		new MinLengthProperty(),
 		new MaxLengthProperty(),
 		new MinInclusiveProperty(),
@@ -131,15 +197,83 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 		new MaxExclusiveProperty(),
 		new PatternProperty(),
 		new LengthProperty(),
-		new EnumerationProperty()
+		ENUMERATION
 	};
 	
 	private Boolean isElementQualified = false, isAttributeQualified = false;
 	
+	/**
+	 * When set, the schema is written to the output as it is traversed instead of being built as a DOM first
+	 */
+	private boolean streaming = false;
+	
+	/**
+	 * When set, the emission plan of a complex type is compiled once and reused by every marshal() until it is invalidated
+	 */
+	private boolean precompiled = false;
+	
+	/**
+	 * When set, the root schema only contains the root element, the types in the root namespace are written to an attachment that is included
+	 */
+	private boolean splitRoot = false;
+	
+	/**
+	 * When set, the attachments of the different namespaces are built at the same time
+	 */
+	private boolean parallel = false;
+	
+	/**
+	 * The pool used in parallel mode, the common pool if not set
+	 */
+	private ForkJoinPool forkJoinPool;
+	
+	/**
+	 * The plans are keyed on the instance, types do not necessarily have a meaningful equals()
+	 * A plan refers to its type through the elements so it is held softly, otherwise the weak key would never be cleared
+	 */
+	private WeakIdentityMap<ComplexType, SoftReference<XSDEmissionPlan>> plans = new WeakIdentityMap<ComplexType, SoftReference<XSDEmissionPlan>>();
+	
+	/**
+	 * The converted values of the enumerations, these can be large (country codes, currencies...) and are otherwise converted every time they are written
+	 * They are keyed on the identity of the list of values: hashing a value could hash the entire list
+	 * The keys are weak so the cache does not keep types alive
+	 */
+	private WeakIdentityMap<List<?>, ConvertedEnumeration> enumerations = new WeakIdentityMap<List<?>, ConvertedEnumeration>();
+	
+	/**
+	 * If a subclass changes fixAttributes(), the element attributes are filtered first and then passed to it
+	 */
+	private final boolean fixAttributesOverridden = isFixAttributesOverridden(getClass());
 	
 	public XSDDefinitionMarshaller() {
-		registry = new TypeRegistryImpl();
-		registry.setUseTypeIds(true);
+		// best to add it for xml schema
+		setOmitXMLDeclaration(false);
+	}
+	
+	/**
+	 * Creates the state for a single marshalling run, the marshaller itself is not modified while marshalling so it can be shared as long as each run has its own context
+	 */
+	public XSDMarshalContext newContext() {
+		XSDMarshalContext context = new XSDMarshalContext(isElementQualified, isAttributeQualified);
+		// this is the same as a batch with a single root
+		context.setShared(splitRoot);
+		return context;
+	}
+	
+	/**
+	 * Creates the state for marshalling multiple roots that share their types, all named types end up in attachments (including those in the namespace of a root) so they can be shared
+	 */
+	public XSDMarshalContext newBatchContext() {
+		XSDMarshalContext context = newContext();
+		context.setShared(true);
+		return context;
+	}
+	
+	private XSDMarshalContext getContext() {
+		if (context == null) {
+			context = newContext();
+		}
+		return context;
 	}
 	
 	/**
@@ -147,77 +281,191 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 	 * Might need to refactor this a bit...
 	 */
 	public void define(be.nabu.libs.types.api.Element<?> element) {
+		define(getContext(), element);
+	}
+	public void define(SimpleType<?> simpleType) {
+		define(getContext(), simpleType);
+	}
+	public void define(ComplexType complexType) {
+		define(getContext(), complexType);
+	}
+	
+	public void define(XSDMarshalContext context, be.nabu.libs.types.api.Element<?> element) {
 		// only define named elements
 		if (element.getName() != null) {
-			createSchemaIfNecessary(element.getNamespace());
-			define(schema.getDocumentElement(), element);
+			createSchemaIfNecessary(context, element.getNamespace());
+			define(context, context.getSchema().getDocumentElement(), element);
+			walk(context);
 		}
 	}
-	public void define(SimpleType<?> simpleType) {
+	public void define(XSDMarshalContext context, SimpleType<?> simpleType) {
 		if (simpleType.getName() != null) {
-			createSchemaIfNecessary(getNamespace(simpleType));
-			define(schema.getDocumentElement(), simpleType);
+			createSchemaIfNecessary(context, getNamespace(context, simpleType));
+			define(context, context.getSchema().getDocumentElement(), simpleType);
+			walk(context);
 		}
 	}
-	public void define(ComplexType complexType) {
+	public void define(XSDMarshalContext context, ComplexType complexType) {
 		if (complexType.getName() != null) {
-			createSchemaIfNecessary(getNamespace(complexType));
-			define(schema.getDocumentElement(), complexType);
+			createSchemaIfNecessary(context, getNamespace(context, complexType));
+			define(context, context.getSchema().getDocumentElement(), complexType);
+			walk(context);
 		}
 	}
 
-	private void createSchemaIfNecessary(String namespace) {
-		if (schema == null) {
+	private void createSchemaIfNecessary(XSDMarshalContext context, String namespace) {
+		if (context.getSchema() == null) {
 			Document document = newDocument(true);
 			// still need a default though
-			if (isElementQualified == null) {
-				isElementQualified = false;
+			if (context.getIsElementQualified() == null) {
+				context.setIsElementQualified(false);
 			}
-			if (isAttributeQualified == null) {
-				isAttributeQualified = false;
+			if (context.getIsAttributeQualified() == null) {
+				context.setIsAttributeQualified(false);
 			}
-			this.namespace = namespace;
-			newSchema(document, namespace, isElementQualified != null && isElementQualified, isAttributeQualified != null && isAttributeQualified);
+			context.setNamespace(namespace);
+			newSchema(context, document, namespace, context.getIsElementQualified(), context.getIsAttributeQualified());
 		}
 	}
 	
-	private void define(Node parent, be.nabu.libs.types.api.Element<?> element) {
+	private void define(XSDMarshalContext context, Node parent, be.nabu.libs.types.api.Element<?> element) {
 		if (!NAMESPACE.equals(element.getNamespace())) {
-			Element importedSchema = getTargetSchema(parent, element.getNamespace(), isElementQualified, isAttributeQualified);
+			Element importedSchema = getTargetSchema(context, parent, element.getNamespace());
 			// only define it if it isn't defined already
-			if (registry.getElement(element.getNamespace(), element.getName()) == null) {
-				registry.register(element);
-				writeElement(importedSchema, element);
+			boolean existing = context.getRegistry().getElement(element.getNamespace(), element.getName()) != null;
+			if (listener != null) {
+				listener.defined(element.getNamespace(), element.getName(), existing);
+			}
+			if (!existing) {
+				context.getRegistry().register(element);
+				context.markModified(importedSchema.getOwnerDocument());
+				writeElement(context, importedSchema, element);
 			}
 		}
 	}
 	
-	private void define(Node parent, SimpleType<?> simpleType) {
+	private void define(XSDMarshalContext context, Node parent, SimpleType<?> simpleType) {
 		// unnamed, just embed
 		if (simpleType.getName() == null) {
-			writeSimpleType(parent, simpleType);
+			writeSimpleType(context, parent, simpleType);
 		}
-		else {
-			Element importedSchema = getTargetSchema(parent, getNamespace(simpleType), isElementQualified, isAttributeQualified);
+		else if (!isReferenceOnly(context, parent, getNamespace(context, simpleType))) {
+			Element importedSchema = getTargetSchema(context, parent, getNamespace(context, simpleType));
 			// only define it if it isn't defined already
-			if (registry.getSimpleType(simpleType.getNamespace(), getTypeName(simpleType)) == null) {
-				registry.register(simpleType);
-				writeSimpleType(importedSchema, simpleType);
+			boolean existing = context.getRegistry().getSimpleType(simpleType.getNamespace(), getTypeName(context, simpleType)) != null;
+			if (listener != null) {
+				listener.defined(simpleType.getNamespace(), getTypeName(context, simpleType), existing);
+			}
+			if (!existing) {
+				context.getRegistry().register(simpleType);
+				context.markModified(importedSchema.getOwnerDocument());
+				writeSimpleType(context, importedSchema, simpleType);
 			}
 		}
 	}
 	
-	private void define(Node parent, ComplexType complexType) {
+	private void define(XSDMarshalContext context, Node parent, ComplexType complexType) {
 		if (complexType.getName() == null) {
-			writeComplexType(parent, complexType);
+			Element open = context.getOpenType(complexType);
+			// only an element can reference the type
+			if (open != null && parent.getNodeName().equals("element")) {
+				referenceRecursiveType(context, (Element) parent, open);
+			}
+			else {
+				writeComplexType(context, parent, complexType);
+			}
 		}
-		else {
-			Element importedSchema = getTargetSchema(parent, getNamespace(complexType), isElementQualified, isAttributeQualified);
+		else if (!isReferenceOnly(context, parent, getNamespace(context, complexType))) {
+			Element importedSchema = getTargetSchema(context, parent, getNamespace(context, complexType));
 			// register using the actual complex type namespace so we don't get doubles once we start playing with namespaces
-			if (registry.getComplexType(complexType.getNamespace(), getTypeName(complexType)) == null) {
-				registry.register(complexType);
-				writeComplexType(importedSchema, complexType);
+			boolean existing = context.getRegistry().getComplexType(complexType.getNamespace(), getTypeName(context, complexType)) != null;
+			if (listener != null) {
+				listener.defined(complexType.getNamespace(), getTypeName(context, complexType), existing);
+			}
+			if (!existing) {
+				context.getRegistry().register(complexType);
+				context.markModified(importedSchema.getOwnerDocument());
+				writeComplexType(context, importedSchema, complexType);
+			}
+		}
+	}
+	
+	/**
+	 * An anonymous type that contains itself can not be written inline, it would never end
+	 * The first occurrence is moved to the schema as a named type which is referenced by the recursive elements, this way the type is only written once
+	 */
+	private void referenceRecursiveType(XSDMarshalContext context, Element element, Element complexTypeElement) {
+		Document document = complexTypeElement.getOwnerDocument();
+		String namespace = document.getDocumentElement().getAttribute("targetNamespace");
+		String name = complexTypeElement.getAttribute("name");
+		if (name.isEmpty()) {
+			Element owner = (Element) complexTypeElement.getParentNode();
+			// share the counter with the deduplication so the names can't clash
+			XSDMarshalContext.AnonymousTypes anonymousTypes = context.getAnonymousTypes(document);
+			do {
+				name = owner.getAttribute("name") + "Type" + anonymousTypes.nextCounter();
+			}
+			while (context.getDeclaration(getDeclarationKey("complexType", namespace, name)) != null);
+			// the children that are still scheduled keep a reference to the nodes so they end up in the moved type
+			complexTypeElement.setAttribute("name", name);
+			owner.removeChild(complexTypeElement);
+			document.getDocumentElement().appendChild(complexTypeElement);
+			owner.setAttribute("type", getQualifiedName(context, owner, namespace, name));
+			context.setDeclaration(getDeclarationKey("complexType", namespace, name), complexTypeElement);
+			context.markModified(document);
+		}
+		// the recursive element can be in another schema than the type
+		element.setAttribute("type", getQualifiedName(context, element, namespace, name));
+	}
+	
+	/**
+	 * The name of a type that was moved to the top of a schema as it is referenced from the given node, the prefix is resolved in the schema of the node
+	 * The namespace is the target namespace of the schema the type was moved to, it is empty if there is none
+	 */
+	private String getQualifiedName(XSDMarshalContext context, Node node, String namespace, String name) {
+		if (namespace.isEmpty()) {
+			return name;
+		}
+		importSchema(context, node, namespace);
+		return getNamespacePrefix(context, node, namespace) + ":" + name;
+	}
+	
+	/**
+	 * In lazy mode the types in other namespaces are only referenced, their attachments are built when they are requested
+	 * The types of our own namespace that the sequential build would reach through the referenced type are defined right after it (see TypeDiscovery)
+	 */
+	private boolean isReferenceOnly(final XSDMarshalContext context, Node parent, String namespace) {
+		if (context.isLazy() && !context.isOwnNamespace(namespace)) {
+			getNamespacePrefix(context, parent, namespace);
+			importSchema(context, parent, namespace);
+			List<Type> detours = context.nextReference();
+			if (detours != null) {
+				for (int i = detours.size() - 1; i >= 0; i--) {
+					final Type detour = detours.get(i);
+					context.schedule(new Runnable() {
+						@Override
+						public void run() {
+							defineDeclaration(context, detour);
+						}
+					});
+				}
 			}
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Defines a named type at the top level of the schema it belongs in
+	 */
+	private void defineDeclaration(XSDMarshalContext context, Type type) {
+		String namespace = getNamespace(context, type);
+		Element parent = !context.isShared() && context.isRootNamespace(namespace) ? context.getSchema().getDocumentElement() : getAttachment(context, namespace).getDocumentElement();
+		if (type instanceof ComplexType) {
+			define(context, parent, (ComplexType) type);
+		}
+		else {
+			define(context, parent, (SimpleType<?>) type);
 		}
 	}
 	
@@ -239,289 +487,1081 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 
 	@Override
 	public void marshal(OutputStream output, ComplexType type, Value<?>...values) throws IOException {
-		Document document = newDocument(true);
-		namespace = type.getNamespace(values);
-
-		// the user can set this explicitly
-		if (isElementQualified == null) {
-			isElementQualified = type.isElementQualified(values);
-		}
-		if (isAttributeQualified == null) {
-			isAttributeQualified = type.isAttributeQualified(values);
-		}
-		
-		// still need a default though
-		if (isElementQualified == null) {
-			isElementQualified = false;
-		}
-		if (isAttributeQualified == null) {
-			isAttributeQualified = false;
+		// the streaming writer always puts the root types in the root schema and it can't move types that were already written (deduplication)
+		// it does support canonical and compact output
+		if (streaming && !splitRoot && !deduplicateAnonymousTypes) {
+			new XSDStreamWriter(this).write(output, type, values);
+			return;
 		}
-
-		writeElement(newSchema(document, namespace, isElementQualified, isAttributeQualified), new ComplexElementImpl(type, null, values));
-		
-		// best to add it for xml schema
-		setOmitXMLDeclaration(false);
-		
-		// if there is an attachment provider, we will store all the attachments
-		if (attachmentProvider != null && attachments.size() > 0) {
-			// store all the attachments
-			for (String namespace : attachments.keySet()) {
-				OutputStream attachmentOutput = attachmentProvider.getOutput(namespace);
-				try {
-					writeToStream(attachments.get(namespace), attachmentOutput);
-				}
-				finally {
-					attachmentOutput.close();
-				}
-			}
+		marshal(newContext(), output, type, values);
+	}
+	
+	public void marshal(XSDMarshalContext context, OutputStream output, ComplexType type, Value<?>...values) throws IOException {
+		Document document = build(context, type, values);
+		if (canonical) {
+			canonicalize(context, document);
+			canonicalize(context, context.getAttachments().values());
 		}
+		writeAttachments(context.getAttachments());
 		// store the actual document
-		writeToStream(document, output);
+		write(context.getNamespace(), false, document, output);
 	}
 	
-	public AttachmentProvider getAttachmentProvider() {
-		return attachmentProvider;
-	}
-
-	public void setAttachmentProvider(AttachmentProvider attachmentProvider) {
-		this.attachmentProvider = attachmentProvider;
-	}
-
-	public boolean isForceAnonymousComplexTypes() {
-		return forceAnonymousComplexTypes;
+	/**
+	 * Marshals all the roots in one batch: every named type is defined (and serialized) once in a shared attachment per namespace, the root schemas only contain their root element
+	 * The attachments are written to the attachment provider (if any), the root schemas are returned in the order of the roots
+	 * Complex types can be passed in as root by wrapping them in a ComplexElementImpl
+	 */
+	public List<byte[]> marshal(Collection<? extends be.nabu.libs.types.api.Element<?>> roots) throws IOException {
+		XSDMarshalContext context = newBatchContext();
+		List<Document> documents = build(context, roots);
+		if (canonical) {
+			canonicalize(context, documents);
+			canonicalize(context, context.getAttachments().values());
+		}
+		writeAttachments(context.getAttachments());
+		List<byte[]> result = new ArrayList<byte[]>();
+		Iterator<? extends be.nabu.libs.types.api.Element<?>> iterator = roots.iterator();
+		for (Document document : documents) {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			write(iterator.next().getNamespace(), false, document, output);
+			result.add(output.toByteArray());
+		}
+		return result;
 	}
-
-	public void setForceAnonymousComplexTypes(boolean forceAnonymousComplexTypes) {
-		this.forceAnonymousComplexTypes = forceAnonymousComplexTypes;
+	
+	/**
+	 * Only builds and serializes the root schema, the attachments are built the first time they are requested from the result
+	 * The imports in the root schema point to the uris of the attachment provider (if any) so the attachments can be served from there
+	 */
+	public LazyMarshalledSchema marshalLazily(ComplexType type, Value<?>...values) throws IOException {
+		XSDMarshalContext context = newContext();
+		context.setLazy(true);
+		// the root types are always in the root schema, they are not discovered as a separate attachment
+		context.setShared(false);
+		// we need to know which types end up in which namespace before we build anything
+		context.setNamespace(type.getNamespace(values));
+		Map<String, TypeDiscovery.Declarations> declarations = new TypeDiscovery(this, context).discover(new ComplexElementImpl(type, null, values));
+		// types in the root namespace that are only reached through other namespaces are defined where the sequential build would reach them
+		TypeDiscovery.Declarations rootDeclarations = declarations.remove(context.getNamespace());
+		if (rootDeclarations != null) {
+			context.setDetours(rootDeclarations.getDetours());
+		}
+		Document document = build(context, type, values);
+		context.setDetours(null);
+		if (canonical) {
+			canonicalize(context, document);
+		}
+		return new LazyMarshalledSchema(this, context, serialize(document), declarations);
 	}
-
-	protected Value<?>[] fixAttributes(Value<?>...values) {
-		List<Value<?>> list = new ArrayList<Value<?>>(Arrays.asList(values));
-		// nabu diverges from the xml-default of nillable, this is correct when generating xsds
-		boolean hasNillable = false;
-		Iterator<Value<?>> iterator = list.iterator();
-		while (iterator.hasNext()) {
-			Value<?> value = iterator.next();
-			if (NillableProperty.getInstance().equals(value.getProperty())) {
-				hasNillable = true;
-				// this is the xsd default, no need to explicitly set it
-				if (Boolean.valueOf(false).equals(value.getValue())) {
-					iterator.remove();
-				}
-			}
+	
+	/**
+	 * Builds the attachment for a namespace in a detached context (see XSDMarshalContext.fork(String)), the types are written in the order the sequential build would write them
+	 */
+	Document materialize(XSDMarshalContext context, String namespace, TypeDiscovery.Declarations declarations) {
+		Document document = getAttachment(context, namespace);
+		context.setDetours(declarations.getDetours());
+		for (Type type : declarations.getEntries()) {
+			defineDeclaration(context, type);
+			walk(context);
 		}
-		// if there is no nillable value, we assume the default ("true") is set, at which point we should set this in the xsd
-		if (!hasNillable) {
-			list.add(new ValueImpl<Boolean>(NillableProperty.getInstance(), true));
+		if (canonical) {
+			canonicalize(context, document);
 		}
-		return list.toArray(new Value[0]);
+		return document;
 	}
 	
-	private String getTypeName(Type type, Value<?>...values) {
-		// xsd types
-		if (NAMESPACE.equals(getNamespace(type))) {
-			return type.getName(values);
+	/**
+	 * Builds the root schema and the attachments and serializes all of them
+	 */
+	public MarshalledSchema marshalToBytes(ComplexType type, Value<?>...values) throws IOException {
+		XSDMarshalContext context = newContext();
+		Document document = build(context, type, values);
+		if (canonical) {
+			canonicalize(context, document);
+			canonicalize(context, context.getAttachments().values());
 		}
-		// globally defined types
-		else if (type instanceof DefinedType) {
-			return ((DefinedType) type).getId();
+		Map<String, byte[]> attachments = new LinkedHashMap<String, byte[]>();
+		Map<String, URI> uris = new LinkedHashMap<String, URI>();
+		for (Map.Entry<String, Document> attachment : context.getAttachments().entrySet()) {
+			attachments.put(attachment.getKey(), serialize(attachment.getValue()));
+			uris.put(attachment.getKey(), attachmentProvider == null ? null : attachmentProvider.getURI(attachment.getKey()));
 		}
-		else {
-			// for all custom types, a "Type" suffix is added because ideally you want to follow the proper naming convention but you can't force this
-			return type.getName() + "Type";
+		return new MarshalledSchema(serialize(document), attachments, uris);
+	}
+	
+	/**
+	 * Compiles the schema for the type so it can be used for validation, the imports are resolved in memory so the attachment provider is not involved
+	 * The documents are serialized in memory first, the schema factory does not understand the (not namespace aware) documents we build
+	 * Use XSDSchemaCache.getValidationSchema() to compile it only once per type
+	 */
+	public Schema newValidationSchema(ComplexType type, Value<?>...values) throws IOException {
+		return marshalToBytes(type, values).getValidationSchema();
+	}
+	
+	private void canonicalize(XSDMarshalContext context, Collection<Document> documents) {
+		for (Document document : documents) {
+			canonicalize(context, document);
 		}
 	}
 	
-	protected void writeComplexType(Node parent, ComplexType type) {
-		Document document = parent.getOwnerDocument();
-
-		Element complexTypeElement = document.createElement("complexType");
-		
-		// if it's standalone, register the name
-		if (parent.getNodeName().equals("schema")) {
-			complexTypeElement.setAttribute("name", getTypeName(type));
+	/**
+	 * Makes the document independent of the order in which it was built:
+	 * - the additional prefixes are renumbered in the order of their namespace (and all references to them are rewritten)
+	 * - the includes and imports are sorted by location and namespace
+	 * - the declarations are sorted by kind and name
+	 * The index of the document is rebuilt so it can still be modified afterwards
+	 */
+	private void canonicalize(XSDMarshalContext context, Document document) {
+		Element schema = document.getDocumentElement();
+		// the namespaces with their current prefix
+		Map<String, String> namespaces = new TreeMap<String, String>();
+		List<Attr> declarations = new ArrayList<Attr>();
+		NamedNodeMap attributes = schema.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			if (attr.getName().startsWith("xmlns:") && !attr.getName().equals("xmlns:tns")) {
+				namespaces.put(attr.getValue(), attr.getName().substring("xmlns:".length()));
+				declarations.add(attr);
+			}
 		}
-		
-		writeAttributes(complexTypeElement, blacklist(whitelist(type.getProperties(), attributeWhitelist), NameProperty.getInstance()));
-		parent.appendChild(complexTypeElement);
-		parent = complexTypeElement;
-
-		// if the complex type is in another namespace, reference that
-		// we need to extend a simple type
-		if (type instanceof SimpleType) {
-			SimpleType<?> simpleType = (SimpleType<?>) type.get(ComplexType.SIMPLE_TYPE_VALUE).getType();
-			String prefix = "";
-			if (!NAMESPACE.equals(getNamespace(simpleType))) {
-				define(parent, simpleType);
-				prefix = getNamespacePrefix(parent, getNamespace(simpleType));
-				if (prefix != null && !prefix.isEmpty()) {
-					prefix += ":";
+		Map<String, String> renamed = new HashMap<String, String>();
+		for (Attr declaration : declarations) {
+			schema.removeAttributeNode(declaration);
+		}
+		for (Map.Entry<String, String> namespace : namespaces.entrySet()) {
+			String prefix = "tns" + renamed.size();
+			renamed.put(namespace.getValue(), prefix);
+			schema.setAttribute("xmlns:" + prefix, namespace.getKey());
+		}
+		NodeList elements = schema.getElementsByTagName("*");
+		for (int i = 0; i < elements.getLength(); i++) {
+			Element element = (Element) elements.item(i);
+			for (String name : new String[] { "type", "base" }) {
+				String value = element.getAttribute(name);
+				int index = value.indexOf(':');
+				if (index > 0 && renamed.containsKey(value.substring(0, index))) {
+					element.setAttribute(name, renamed.get(value.substring(0, index)) + value.substring(index));
 				}
 			}
-			Element simpleContentElement = document.createElement("simpleContent");
-			Element restrictionElement = document.createElement("extension");
-			restrictionElement.setAttribute("base", prefix + simpleType.getName(type.getProperties()));
-			simpleContentElement.appendChild(restrictionElement);
-			complexTypeElement.appendChild(simpleContentElement);
-			parent = restrictionElement;
-		}
-		// we need to define a sequence element
-		else {
-			Element sequence = document.createElement("sequence");
-			complexTypeElement.appendChild(sequence);
-			parent = sequence;
 		}
 		
-		// currently we just load all elements instead of referencing ids or the superType (no way to resolve them yet)
-		List<be.nabu.libs.types.api.Element<?>> processedChildren = new ArrayList<be.nabu.libs.types.api.Element<?>>();
-		Iterator<be.nabu.libs.types.api.Element<?>> childIterator = useExtension ? type.iterator() : TypeUtils.getAllChildrenIterator(type);
-		if (useExtension && type.getSuperType() != null) {
-			if (type.getSuperType() instanceof ComplexType) {
-				define(parent, (ComplexType) type.getSuperType());
+		List<Element> children = new ArrayList<Element>();
+		while (schema.getFirstChild() != null) {
+			Node child = schema.removeChild(schema.getFirstChild());
+			if (child instanceof Element) {
+				children.add((Element) child);
 			}
 		}
-		while (childIterator.hasNext()) {
-			be.nabu.libs.types.api.Element<?> child = childIterator.next();
-			if (processedChildren.contains(child))
-				continue;
-			// do not process the value element (if any)
-			if (child.getName().equals(type.get(ComplexType.SIMPLE_TYPE_VALUE)))
-				continue;
-			// in a lot of cases we want to hide privately scoped variables
-			if (hidePrivatelyScoped) {
-				Value<Scope> property = child.getProperty(ScopeProperty.getInstance());
-				if (property != null && property.getValue() == Scope.PRIVATE) {
-					continue;
+		Collections.sort(children, new Comparator<Element>() {
+			@Override
+			public int compare(Element first, Element second) {
+				int result = getOrder(first) - getOrder(second);
+				if (result == 0) {
+					result = getSortKey(first).compareTo(getSortKey(second));
 				}
+				return result;
 			}
-			Group group = getGroup(type, child);
-			if (group instanceof Choice) {
-				Element childElement = document.createElement("choice");
-				writeAttributes(childElement, group.getProperties());
-				parent.appendChild(childElement);
-				parent = childElement;
-			}
-			else if (group != null)
-				throw new MarshalException("The xml schema marshaller only supports choice groups");
-			
-			writeElement(parent, child);
-
-			// finish the choice with the other options in the group
-			if (group instanceof Choice) {
-				for (be.nabu.libs.types.api.Element<?> groupChild : group) {
-					if (groupChild.equals(child))
-						continue;
-					writeElement(parent, groupChild);
-					processedChildren.add(groupChild);
+		});
+		for (Element child : children) {
+			schema.appendChild(child);
+		}
+		
+		XSDMarshalContext.SchemaIndex index = context.getSchemaIndex(document);
+		context.setSchemaIndex(document, newSchemaIndex(document, index == null ? null : index.getNamespace()));
+		context.markModified(document);
+	}
+	
+	private static final List<String> CANONICAL_ORDER = Arrays.asList("include", "import", "element", "attribute", "complexType", "simpleType");
+	
+	private static int getOrder(Element element) {
+		int index = CANONICAL_ORDER.indexOf(element.getNodeName());
+		return index < 0 ? CANONICAL_ORDER.size() : index;
+	}
+	
+	private static String getSortKey(Element element) {
+		if (element.getNodeName().equals("include")) {
+			return element.getAttribute("schemaLocation");
+		}
+		else if (element.getNodeName().equals("import")) {
+			return element.getAttribute("namespace");
+		}
+		return element.getAttribute("name");
+	}
+	
+	private void writeAttachments(Map<String, Document> attachments) throws IOException {
+		// if there is an attachment provider, we will store all the attachments
+		if (attachmentProvider != null && attachments.size() > 0) {
+			if (attachmentExecutor == null) {
+				// store all the attachments
+				for (String namespace : attachments.keySet()) {
+					writeAttachment(namespace, attachments.get(namespace));
 				}
-				// reset the parent to the parent of the choice node
-				parent = parent.getParentNode();
+			}
+			else {
+				writeAttachmentsConcurrently(attachments);
 			}
 		}
 	}
 	
-	private Element newSchema(Document document, String namespace, Boolean elementQualified, Boolean attributeQualified) {
-		Element schema = document.createElement("schema");
-		schema.setAttribute("xmlns", NAMESPACE);
-		if (elementQualified != null && elementQualified)
-			schema.setAttribute("elementFormDefault", "qualified");
-		if (attributeQualified != null && attributeQualified)
-			schema.setAttribute("attributeFormDefault", "qualified");
-		document.appendChild(schema);
-		if (namespace != null) {
-			schema.setAttribute("targetNamespace", namespace);
-			schema.setAttribute("xmlns:tns", namespace);
+	private void writeAttachment(String namespace, Document attachment) throws IOException {
+		OutputStream attachmentOutput = attachmentProvider.getOutput(namespace);
+		try {
+			write(namespace, true, attachment, attachmentOutput);
 		}
-		// if no schema exists yet, this is the root one
-		if (this.schema == null) {
-			this.schema = document;
+		finally {
+			attachmentOutput.close();
 		}
-		return schema;
 	}
 	
-	private Element getTargetSchema(Node parent, String namespace, Boolean elementQualified, Boolean attributeQualified) {
-		// for the root scheme, just return that
-		if ((this.namespace == null && namespace == null) || (this.namespace != null && this.namespace.equals(namespace))) {
-			return schema.getDocumentElement();
+	private void write(String namespace, boolean attachment, Document document, OutputStream output) throws IOException {
+		if (listener == null) {
+			writeCompressible(document, output);
+		}
+		else {
+			long started = System.nanoTime();
+			// count what actually goes over the wire
+			CountingOutputStream counting = new CountingOutputStream(output);
+			writeCompressible(document, counting);
+			counting.flush();
+			listener.serialized(namespace, attachment, counting.getCount(), System.nanoTime() - started);
+		}
+	}
+	
+	private void writeCompressible(Document document, OutputStream output) throws IOException {
+		if (compressed) {
+			GZIPOutputStream gzip = new GZIPOutputStream(output);
+			writeDocument(document, gzip);
+			// this does not close the underlying stream
+			gzip.finish();
+		}
+		else {
+			writeDocument(document, output);
+		}
+	}
+	
+	/**
+	 * Writes the document uncompressed, in compact mode without any whitespace
+	 */
+	void writeDocument(Document document, OutputStream output) throws IOException {
+		if (!compact) {
+			writeToStream(document, output);
+		}
+		else {
+			try {
+				Transformer transformer;
+				// the factory is not guaranteed to be thread safe, the transformers it creates are not shared
+				synchronized(TRANSFORMER_FACTORY) {
+					transformer = TRANSFORMER_FACTORY.newTransformer();
+				}
+				transformer.setOutputProperty(OutputKeys.INDENT, "no");
+				transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+				transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, omitXMLDeclaration ? "yes" : "no");
+				transformer.transform(new DOMSource(document), new StreamResult(output));
+			}
+			catch (TransformerException e) {
+				throw new IOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the root schema and all its attachments to a single zip archive, the root is called "schema.xsd"
+	 * The schema locations of the imports point to the other entries in the archive so it can be used as is
+	 */
+	public void marshalToZip(OutputStream output, ComplexType type, Value<?>...values) throws IOException {
+		XSDMarshalContext context = newContext();
+		BundleLocations locations = new BundleLocations();
+		context.setLocationResolver(locations);
+		Document document = build(context, type, values);
+		if (canonical) {
+			canonicalize(context, document);
+			canonicalize(context, context.getAttachments().values());
+		}
+		ZipOutputStream zip = new ZipOutputStream(output);
+		zip.putNextEntry(new ZipEntry(BUNDLE_ROOT));
+		writeDocument(document, zip);
+		zip.closeEntry();
+		for (Map.Entry<String, Document> attachment : context.getAttachments().entrySet()) {
+			zip.putNextEntry(new ZipEntry(locations.getURI(attachment.getKey()).toString()));
+			writeDocument(attachment.getValue(), zip);
+			zip.closeEntry();
+		}
+		// this does not close the underlying stream
+		zip.finish();
+	}
+	
+	/**
+	 * Assigns a file name to each namespace in a zip bundle, this is only used to resolve the schema locations
+	 */
+	private static class BundleLocations implements SchemaLocationResolver {
+		private Map<String, URI> uris = new HashMap<String, URI>();
+		private Set<String> names = new HashSet<String>();
+		
+		BundleLocations() {
+			// taken by the root
+			names.add(BUNDLE_ROOT.substring(0, BUNDLE_ROOT.lastIndexOf('.')));
+		}
+		
+		@Override
+		public synchronized URI getURI(String namespace) {
+			URI uri = uris.get(namespace);
+			if (uri == null) {
+				String name = getFileName(namespace);
+				String unique = name;
+				for (int i = 1; !names.add(unique); i++) {
+					unique = name + i;
+				}
+				uri = URI.create(unique + ".xsd");
+				uris.put(namespace, uri);
+			}
+			return uri;
+		}
+	}
+	
+	/**
+	 * A file name (without extension) based on the namespace, it is not necessarily unique
+	 */
+	static String getFileName(String namespace) {
+		return namespace == null ? "attachment" : namespace.replaceAll("^[a-zA-Z]+:/*", "").replaceAll("[^a-zA-Z0-9._-]+", "_");
+	}
+	
+	/**
+	 * Each attachment is written in its own task, we wait for all of them in the order of the attachments
+	 * If any fail, the exception of the first failed attachment (in that order) is thrown, the others are added as suppressed
+	 */
+	private void writeAttachmentsConcurrently(Map<String, Document> attachments) throws IOException {
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+		for (final Map.Entry<String, Document> attachment : attachments.entrySet()) {
+			FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					writeAttachment(attachment.getKey(), attachment.getValue());
+					return null;
+				}
+			});
+			tasks.add(task);
+			attachmentExecutor.execute(task);
+		}
+		Throwable failure = null;
+		for (FutureTask<Void> task : tasks) {
+			try {
+				task.get();
+			}
+			catch (InterruptedException e) {
+				for (FutureTask<Void> toCancel : tasks) {
+					toCancel.cancel(true);
+				}
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while writing the attachments");
+			}
+			catch (ExecutionException e) {
+				if (failure == null) {
+					failure = e.getCause();
+				}
+				else {
+					failure.addSuppressed(e.getCause());
+				}
+			}
+		}
+		if (failure instanceof IOException) {
+			throw (IOException) failure;
+		}
+		else if (failure instanceof RuntimeException) {
+			throw (RuntimeException) failure;
+		}
+		else if (failure instanceof Error) {
+			throw (Error) failure;
+		}
+		else if (failure != null) {
+			throw new IOException(failure);
+		}
+	}
+	
+	/**
+	 * Builds the root schema (and any attachments) in the context without writing anything
+	 */
+	public Document build(XSDMarshalContext context, ComplexType type, Value<?>...values) {
+		context.setRoot(type, values);
+		if (parallel && !context.isLazy()) {
+			return buildInParallel(context, type, values);
+		}
+		return build(context, new ComplexElementImpl(type, null, values), type.getNamespace(values), type.isElementQualified(values), type.isAttributeQualified(values));
+	}
+	
+	/**
+	 * The discovery tells us which types end up in which attachment and where the sequential build would define them, the root schema is then built with all the other namespaces only referenced
+	 * Each attachment is built in its own (detached) context so they can be built at the same time, the attachments only reference each other
+	 */
+	private Document buildInParallel(XSDMarshalContext context, ComplexType type, Value<?>...values) {
+		be.nabu.libs.types.api.Element<?> root = new ComplexElementImpl(type, null, values);
+		context.setNamespace(type.getNamespace(values));
+		TypeDiscovery discovery = new TypeDiscovery(this, context);
+		final Map<String, TypeDiscovery.Declarations> declarations = discovery.discover(root);
+		// an anonymous type that contains itself through another namespace is referenced across attachments, those can't be built on their own
+		if (discovery.isRecursiveAcrossNamespaces()) {
+			return build(context, root, type.getNamespace(values), type.isElementQualified(values), type.isAttributeQualified(values));
+		}
+		Document document;
+		TypeDiscovery.Declarations rootDeclarations = declarations.get(context.getNamespace());
+		context.setLazy(true);
+		context.setDetours(rootDeclarations == null ? null : rootDeclarations.getDetours());
+		try {
+			document = build(context, root, type.getNamespace(values), type.isElementQualified(values), type.isAttributeQualified(values));
+		}
+		finally {
+			context.setLazy(false);
+			context.setDetours(null);
+		}
+		ForkJoinPool pool = forkJoinPool == null ? ForkJoinPool.commonPool() : forkJoinPool;
+		List<XSDMarshalContext> forks = new ArrayList<XSDMarshalContext>();
+		List<ForkJoinTask<Document>> tasks = new ArrayList<ForkJoinTask<Document>>();
+		for (final String namespace : declarations.keySet()) {
+			// the types of the root namespace are already written to the root (or its included attachment)
+			if (context.isRootNamespace(namespace)) {
+				continue;
+			}
+			final XSDMarshalContext fork = context.fork(namespace);
+			forks.add(fork);
+			tasks.add(pool.submit(new Callable<Document>() {
+				@Override
+				public Document call() {
+					return materialize(fork, namespace, declarations.get(namespace));
+				}
+			}));
+		}
+		try {
+			Map<String, Document> attachments = new LinkedHashMap<String, Document>();
+			Iterator<XSDMarshalContext> forkIterator = forks.iterator();
+			// the attachments are added in the order they were discovered, which is the order the sequential build would have created them
+			for (Map.Entry<String, TypeDiscovery.Declarations> entry : declarations.entrySet()) {
+				if (context.isRootNamespace(entry.getKey())) {
+					// if the root is split, its attachment was built along with the root
+					if (context.getAttachments().containsKey(entry.getKey())) {
+						attachments.put(entry.getKey(), context.getAttachments().get(entry.getKey()));
+					}
+					continue;
+				}
+				Document attachment = tasks.remove(0).join();
+				context.merge(forkIterator.next());
+				for (Type attachmentType : entry.getValue().getTypes()) {
+					if (attachmentType instanceof ComplexType) {
+						context.getRegistry().register((ComplexType) attachmentType);
+					}
+					else {
+						context.getRegistry().register((SimpleType<?>) attachmentType);
+					}
+				}
+				attachments.put(entry.getKey(), attachment);
+			}
+			context.getAttachments().clear();
+			context.getAttachments().putAll(attachments);
+		}
+		catch (RuntimeException e) {
+			for (ForkJoinTask<Document> task : tasks) {
+				task.cancel(true);
+			}
+			throw e;
+		}
+		return document;
+	}
+	
+	/**
+	 * Builds the schema for the given root element, if its type is complex the qualification is taken from it
+	 */
+	public Document build(XSDMarshalContext context, be.nabu.libs.types.api.Element<?> root) {
+		Boolean elementQualified = null, attributeQualified = null;
+		if (root.getType() instanceof ComplexType) {
+			elementQualified = ((ComplexType) root.getType()).isElementQualified(root.getProperties());
+			attributeQualified = ((ComplexType) root.getType()).isAttributeQualified(root.getProperties());
+		}
+		return build(context, root, root.getNamespace(), elementQualified, attributeQualified);
+	}
+	
+	/**
+	 * Builds one schema per root in a batch context (see newBatchContext()), the attachments in the context are shared by all of them
+	 * The schemas are returned in the order of the roots
+	 */
+	public List<Document> build(XSDMarshalContext context, Collection<? extends be.nabu.libs.types.api.Element<?>> roots) {
+		List<Document> documents = new ArrayList<Document>();
+		for (be.nabu.libs.types.api.Element<?> root : roots) {
+			documents.add(build(context, root));
+		}
+		return documents;
+	}
+	
+	private Document build(XSDMarshalContext context, be.nabu.libs.types.api.Element<?> root, String namespace, Boolean elementQualified, Boolean attributeQualified) {
+		long started = listener == null ? 0 : System.nanoTime();
+		Document document = newDocument(true);
+		context.setNamespace(namespace);
+
+		// the user can set this explicitly
+		if (context.getIsElementQualified() == null) {
+			context.setIsElementQualified(elementQualified);
+		}
+		if (context.getIsAttributeQualified() == null) {
+			context.setIsAttributeQualified(attributeQualified);
+		}
+		
+		// still need a default though
+		if (context.getIsElementQualified() == null) {
+			context.setIsElementQualified(false);
+		}
+		if (context.getIsAttributeQualified() == null) {
+			context.setIsAttributeQualified(false);
+		}
+
+		writeElement(context, newSchema(context, document, context.getNamespace(), context.getIsElementQualified(), context.getIsAttributeQualified()), root);
+		walk(context);
+		if (listener != null) {
+			listener.built(root.getType(), System.nanoTime() - started);
+		}
+		return document;
+	}
+	
+	/**
+	 * Regenerates the declaration of a changed type in the schemas that were built earlier with this context.
+	 * The declaration is replaced in the document it already lives in, types that it now references and that were not yet defined are added to their schema.
+	 * Other types that changed have to be updated separately and types that are no longer referenced are not removed.
+	 * Returns the documents that were modified, only those need to be serialized again
+	 */
+	public Set<Document> update(XSDMarshalContext context, Type type) {
+		// the type changed so its plan (if any) is outdated
+		if (type instanceof ComplexType) {
+			invalidatePlan((ComplexType) type);
+		}
+		context.startTracking();
+		try {
+			// complex types with simple content are still written as complex types
+			String kind = type instanceof ComplexType ? "complexType" : "simpleType";
+			Element original = type.getName() == null ? null : context.getDeclaration(getDeclarationKey(kind, type.getNamespace(), getTypeName(context, type)));
+			if (original != null) {
+				Node schema = original.getParentNode();
+				if (type instanceof ComplexType) {
+					context.getRegistry().register((ComplexType) type);
+					writeComplexType(context, schema, (ComplexType) type);
+					walk(context);
+				}
+				else {
+					context.getRegistry().register((SimpleType<?>) type);
+					writeSimpleType(context, schema, (SimpleType<?>) type);
+				}
+				replaceDeclaration(context, schema, original, context.getDeclaration(getDeclarationKey(kind, type.getNamespace(), getTypeName(context, type))));
+			}
+			// an anonymous root type is embedded in the root element
+			else if (type instanceof ComplexType && context.getRootType() != null && isSameType(context.getRootType(), type)) {
+				be.nabu.libs.types.api.Element<?> root = new ComplexElementImpl((ComplexType) type, null, context.getRootValues());
+				String key = getDeclarationKey("element", root.getNamespace(), root.getName());
+				original = context.getDeclaration(key);
+				if (original != null) {
+					context.setRoot((ComplexType) type, context.getRootValues());
+					Node schema = original.getParentNode();
+					writeElement(context, schema, root);
+					walk(context);
+					replaceDeclaration(context, schema, original, context.getDeclaration(key));
+				}
+			}
+			Set<Document> modified = context.stopTracking();
+			if (canonical) {
+				canonicalize(context, modified);
+			}
+			return modified;
+		}
+		catch (RuntimeException e) {
+			context.stopTracking();
+			throw e;
+		}
+	}
+	
+	private void replaceDeclaration(XSDMarshalContext context, Node schema, Element original, Element replacement) {
+		// the replacement was appended to the schema, move it to the position of the original
+		schema.replaceChild(replacement, original);
+		context.markModified(schema.getOwnerDocument());
+	}
+	
+	private boolean isSameType(Type original, Type type) {
+		if (original == type) {
+			return true;
+		}
+		else if (original instanceof DefinedType && type instanceof DefinedType) {
+			return ((DefinedType) original).getId().equals(((DefinedType) type).getId());
+		}
+		return original.getName() != null && original.getName().equals(type.getName())
+			&& (original.getNamespace() == null ? type.getNamespace() == null : original.getNamespace().equals(type.getNamespace()));
+	}
+	
+	private static String getDeclarationKey(String kind, String namespace, String name) {
+		return kind + ":" + namespace + ":" + name;
+	}
+	
+	byte[] serialize(Document document) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writeDocument(document, output);
+		return output.toByteArray();
+	}
+	
+	public AttachmentProvider getAttachmentProvider() {
+		return attachmentProvider;
+	}
+
+	public void setAttachmentProvider(AttachmentProvider attachmentProvider) {
+		this.attachmentProvider = attachmentProvider;
+	}
+	
+	public Executor getAttachmentExecutor() {
+		return attachmentExecutor;
+	}
+
+	/**
+	 * When set, the attachments are serialized and written concurrently on this executor (e.g. Executors.newVirtualThreadPerTaskExecutor() on java 21+)
+	 * The attachment provider must then support concurrent calls to getOutput()
+	 */
+	public void setAttachmentExecutor(Executor attachmentExecutor) {
+		this.attachmentExecutor = attachmentExecutor;
+	}
+
+	public boolean isForceAnonymousComplexTypes() {
+		return forceAnonymousComplexTypes;
+	}
+
+	public void setForceAnonymousComplexTypes(boolean forceAnonymousComplexTypes) {
+		this.forceAnonymousComplexTypes = forceAnonymousComplexTypes;
+	}
+
+	/**
+	 * This is applied to the whitelisted properties of every element
+	 * Unless it is overridden, getElementAttributes() applies the same logic while filtering so no intermediate array is needed
+	 */
+	protected Value<?>[] fixAttributes(Value<?>...values) {
+		// nabu diverges from the xml-default of nillable, this is correct when generating xsds
+		boolean hasNillable = false;
+		int count = 0;
+		for (Value<?> value : values) {
+			if (NILLABLE.equals(value.getProperty())) {
+				hasNillable = true;
+				// this is the xsd default, no need to explicitly set it
+				if (Boolean.FALSE.equals(value.getValue())) {
+					continue;
+				}
+			}
+			count++;
+		}
+		// if there is no nillable value, we assume the default ("true") is set, at which point we should set this in the xsd
+		Value<?>[] result = new Value<?>[hasNillable ? count : count + 1];
+		int index = 0;
+		for (Value<?> value : values) {
+			if (NILLABLE.equals(value.getProperty()) && Boolean.FALSE.equals(value.getValue())) {
+				continue;
+			}
+			result[index++] = value;
+		}
+		if (!hasNillable) {
+			result[index] = NILLABLE_DEFAULT;
+		}
+		return result;
+	}
+	
+	private String getTypeName(XSDMarshalContext context, Type type, Value<?>...values) {
+		return getTypeName(type, getNamespace(context, type), values);
+	}
+	
+	String getTypeName(Type type, String namespace, Value<?>...values) {
+		// xsd types
+		if (NAMESPACE.equals(namespace)) {
+			return type.getName(values);
+		}
+		// globally defined types
+		else if (type instanceof DefinedType) {
+			return ((DefinedType) type).getId();
+		}
+		else {
+			// for all custom types, a "Type" suffix is added because ideally you want to follow the proper naming convention but you can't force this
+			return type.getName() + "Type";
+		}
+	}
+	
+	protected void writeComplexType(Node parent, ComplexType type) {
+		writeComplexType(getContext(), parent, type);
+	}
+	
+	protected void writeComplexType(final XSDMarshalContext context, Node parent, ComplexType type) {
+		if (listener != null) {
+			listener.complexTypeWritten(type);
+		}
+		Document document = parent.getOwnerDocument();
+		// only a cached plan pays off, compiling one for a single write costs more than writing directly
+		XSDEmissionPlan plan = precompiled ? getPlan(document, type) : null;
+
+		Element complexTypeElement = document.createElement("complexType");
+		
+		// if it's standalone, register the name
+		boolean standalone = parent.getNodeName().equals("schema");
+		if (standalone) {
+			complexTypeElement.setAttribute("name", getTypeName(context, type));
+			context.setDeclaration(getDeclarationKey("complexType", type.getNamespace(), getTypeName(context, type)), complexTypeElement);
+		}
+		
+		if (plan == null) {
+			writeAttributes(complexTypeElement, getComplexTypeAttributes(type));
+		}
+		else {
+			setAttributes(complexTypeElement, plan.getAttributes());
+		}
+		parent.appendChild(complexTypeElement);
+		parent = complexTypeElement;
+
+		// if the complex type is in another namespace, reference that
+		// we need to extend a simple type
+		SimpleType<?> valueType = plan == null ? (type instanceof SimpleType ? (SimpleType<?>) type.get(ComplexType.SIMPLE_TYPE_VALUE).getType() : null) : plan.getValueType();
+		if (valueType != null) {
+			SimpleType<?> simpleType = valueType;
+			String prefix = "";
+			if (!NAMESPACE.equals(getNamespace(context, simpleType))) {
+				define(context, parent, simpleType);
+				prefix = getNamespacePrefix(context, parent, getNamespace(context, simpleType));
+				if (prefix != null && !prefix.isEmpty()) {
+					prefix += ":";
+				}
+			}
+			Element simpleContentElement = document.createElement("simpleContent");
+			Element restrictionElement = document.createElement("extension");
+			restrictionElement.setAttribute("base", prefix + (plan == null ? simpleType.getName(type.getProperties()) : plan.getValueTypeName()));
+			simpleContentElement.appendChild(restrictionElement);
+			complexTypeElement.appendChild(simpleContentElement);
+			parent = restrictionElement;
+		}
+		// we need to define a sequence element
+		else {
+			Element sequence = document.createElement("sequence");
+			complexTypeElement.appendChild(sequence);
+			parent = sequence;
+		}
+		
+		// the children are not written here but scheduled on the work stack, in reverse so they are picked up in order
+		// this keeps the stack depth constant no matter how deeply the types are nested
+		// an anonymous type is open until all its children are written, if it is encountered in the meantime it is recursive
+		if (!standalone) {
+			final ComplexType anonymousType = type;
+			context.openType(anonymousType, complexTypeElement);
+			context.schedule(new Runnable() {
+				@Override
+				public void run() {
+					context.closeType(anonymousType);
+				}
+			});
+		}
+		final Node container = parent;
+		if (plan == null) {
+			List<Particle> particles = getParticles(type);
+			for (int i = particles.size() - 1; i >= 0; i--) {
+				final Particle particle = particles.get(i);
+				context.schedule(new Runnable() {
+					@Override
+					public void run() {
+						writeParticle(context, container, particle);
+					}
+				});
+			}
+		}
+		else {
+			List<XSDEmissionPlan.ParticlePlan> particles = plan.getParticles();
+			for (int i = particles.size() - 1; i >= 0; i--) {
+				final XSDEmissionPlan.ParticlePlan particle = particles.get(i);
+				context.schedule(new Runnable() {
+					@Override
+					public void run() {
+						writeParticle(context, container, particle);
+					}
+				});
+			}
+		}
+		// the super type is scheduled last so it is defined before any of the children
+		ComplexType extended = plan == null ? (useExtension && type.getSuperType() instanceof ComplexType ? (ComplexType) type.getSuperType() : null) : plan.getSuperType();
+		if (extended != null) {
+			final ComplexType superType = extended;
+			context.schedule(new Runnable() {
+				@Override
+				public void run() {
+					define(context, container, superType);
+				}
+			});
+		}
+	}
+	
+	private void writeParticle(final XSDMarshalContext context, Node parent, Particle particle) {
+		if (particle.getChoice() != null) {
+			final Element choiceElement = parent.getOwnerDocument().createElement("choice");
+			writeAttributes(choiceElement, particle.getChoice().getProperties());
+			parent.appendChild(choiceElement);
+			List<be.nabu.libs.types.api.Element<?>> options = particle.getElements();
+			for (int i = options.size() - 1; i >= 0; i--) {
+				final be.nabu.libs.types.api.Element<?> option = options.get(i);
+				context.schedule(new Runnable() {
+					@Override
+					public void run() {
+						writeElement(context, choiceElement, option);
+					}
+				});
+			}
+		}
+		else {
+			writeElement(context, parent, particle.getElements().get(0));
+		}
+	}
+	
+	private void writeParticle(final XSDMarshalContext context, Node parent, XSDEmissionPlan.ParticlePlan particle) {
+		if (particle.isChoice()) {
+			final Element choiceElement = parent.getOwnerDocument().createElement("choice");
+			setAttributes(choiceElement, particle.getChoiceAttributes());
+			parent.appendChild(choiceElement);
+			List<XSDEmissionPlan.ElementPlan> options = particle.getElements();
+			for (int i = options.size() - 1; i >= 0; i--) {
+				final XSDEmissionPlan.ElementPlan option = options.get(i);
+				context.schedule(new Runnable() {
+					@Override
+					public void run() {
+						writeElement(context, choiceElement, option);
+					}
+				});
+			}
+		}
+		else {
+			writeElement(context, parent, particle.getElements().get(0));
+		}
+	}
+	
+	/**
+	 * Runs the scheduled steps until the type graph is fully written
+	 */
+	private void walk(XSDMarshalContext context) {
+		try {
+			Runnable task;
+			while ((task = context.nextTask()) != null) {
+				task.run();
+			}
+		}
+		finally {
+			// don't leave half a walk behind if something failed
+			context.clearTasks();
+		}
+	}
+	
+	/**
+	 * Resolves the children of a type in the order they have to be written, the members of a choice are grouped at the position of the first one
+	 */
+	List<Particle> getParticles(ComplexType type) {
+		List<Particle> particles = new ArrayList<Particle>();
+		// the members of choices that were already added
+		Set<be.nabu.libs.types.api.Element<?>> processedChildren = Collections.newSetFromMap(new IdentityHashMap<be.nabu.libs.types.api.Element<?>, Boolean>());
+		// currently we just load all elements instead of referencing ids or the superType (no way to resolve them yet)
+		Iterator<be.nabu.libs.types.api.Element<?>> childIterator = getChildIterator(type);
+		while (childIterator.hasNext()) {
+			be.nabu.libs.types.api.Element<?> child = childIterator.next();
+			if (processedChildren.contains(child))
+				continue;
+			// do not process the value element (if any)
+			if (isValueElement(type, child))
+				continue;
+			// in a lot of cases we want to hide privately scoped variables
+			if (isHidden(child)) {
+				continue;
+			}
+			Group group = getGroup(type, child);
+			if (group instanceof Choice) {
+				List<be.nabu.libs.types.api.Element<?>> options = new ArrayList<be.nabu.libs.types.api.Element<?>>();
+				options.add(child);
+				// finish the choice with the other options in the group
+				for (be.nabu.libs.types.api.Element<?> groupChild : group) {
+					if (groupChild.equals(child))
+						continue;
+					options.add(groupChild);
+					processedChildren.add(groupChild);
+				}
+				particles.add(new Particle(group, options));
+			}
+			else if (group != null)
+				throw new MarshalException("The xml schema marshaller only supports choice groups");
+			else {
+				particles.add(new Particle(null, Arrays.<be.nabu.libs.types.api.Element<?>>asList(child)));
+			}
+		}
+		return particles;
+	}
+	
+	private Element newSchema(XSDMarshalContext context, Document document, String namespace, Boolean elementQualified, Boolean attributeQualified) {
+		Element schema = document.createElement("schema");
+		schema.setAttribute("xmlns", NAMESPACE);
+		if (elementQualified != null && elementQualified)
+			schema.setAttribute("elementFormDefault", "qualified");
+		if (attributeQualified != null && attributeQualified)
+			schema.setAttribute("attributeFormDefault", "qualified");
+		document.appendChild(schema);
+		if (namespace != null) {
+			schema.setAttribute("targetNamespace", namespace);
+			schema.setAttribute("xmlns:tns", namespace);
+		}
+		context.setSchemaIndex(document, new XSDMarshalContext.SchemaIndex(namespace));
+		// if no schema exists yet, this is the root one
+		if (context.getSchema() == null) {
+			context.setSchema(document);
+		}
+		return schema;
+	}
+	
+	private Element getTargetSchema(XSDMarshalContext context, Node parent, String namespace) {
+		// for the root scheme, just return that
+		if (!context.isShared() && context.isRootNamespace(namespace)) {
+			// an attachment that refers back to the root still needs a prefix and an import
+			if (getOwnerDocument(parent) != context.getSchema()) {
+				getNamespacePrefix(context, parent, namespace);
+				importSchema(context, parent, namespace);
+			}
+			return context.getSchema().getDocumentElement();
 		}
 		// get a prefix for this namespace, if it already exists, awesome, if it doesn't it is created
-		getNamespacePrefix(parent, namespace);
+		getNamespacePrefix(context, parent, namespace);
 		
+		Document target = getAttachment(context, namespace);
+		// in a batch the types of a root namespace are in an attachment with the same namespace, it has to be included rather than imported
+		if (context.isShared() && isSameNamespace(namespace, getSchemaIndex(context, parent).getNamespace())) {
+			if (target != getOwnerDocument(parent)) {
+				includeSchema(context, parent, namespace);
+			}
+		}
+		// make sure it's imported
+		else {
+			importSchema(context, parent, namespace);
+		}
+		return target.getDocumentElement();
+	}
+	
+	/**
+	 * Returns the attachment for the namespace, it is created if it does not exist yet
+	 */
+	private Document getAttachment(XSDMarshalContext context, String namespace) {
+		Map<String, Document> attachments = context.getAttachments();
 		if (!attachments.containsKey(namespace)) {
 			Document document = newDocument(true);
-			newSchema(document, namespace, elementQualified, attributeQualified);
+			newSchema(context, document, namespace, context.getIsElementQualified(), context.getIsAttributeQualified());
 			attachments.put(namespace, document);
+			if (listener != null) {
+				listener.attachmentCreated(namespace);
+			}
 		}
-		// make sure it's imported
-		importSchema(parent, namespace);
-		return attachments.get(namespace).getDocumentElement();
-	}
-	
-	private void importSchema(Node parent, String namespace) {
-		boolean alreadyImported = false;
-		for (int i = 0; i < parent.getOwnerDocument().getDocumentElement().getChildNodes().getLength(); i++) {
-			Node child = parent.getOwnerDocument().getDocumentElement().getChildNodes().item(i);
-			if (child.getNodeType() == Node.ELEMENT_NODE) {
-				if (child.getNodeName().equals("import")) {
-					Element element = (Element) child;
-					if (element.getAttribute("namespace").equals(namespace)) {
-						alreadyImported = true;
-						break;
-					}
-				}
+		return attachments.get(namespace);
+	}
+	
+	private static boolean isSameNamespace(String namespace, String other) {
+		return namespace == null ? other == null : namespace.equals(other);
+	}
+	
+	private void includeSchema(XSDMarshalContext context, Node parent, String namespace) {
+		boolean created = getSchemaIndex(context, parent).addImport(namespace);
+		if (listener != null) {
+			listener.schemaImported(namespace, created);
+		}
+		if (created) {
+			context.markModified(parent.getOwnerDocument());
+			Element includeElement = parent.getOwnerDocument().createElement("include");
+			// unlike an import, the location is mandatory for an include
+			String schemaLocation = getSchemaLocation(context, namespace);
+			if (schemaLocation != null) {
+				includeElement.setAttribute("schemaLocation", schemaLocation);
 			}
+			insertFirst(parent.getOwnerDocument().getDocumentElement(), includeElement);
+		}
+	}
+	
+	private String getSchemaLocation(XSDMarshalContext context, String namespace) {
+		// the context can override the provider for its own output (e.g. a zip bundle)
+		SchemaLocationResolver resolver = context.getLocationResolver();
+		if (resolver == null && attachmentProvider == null) {
+			return "attachments:/" + namespace; 
 		}
-		if (!alreadyImported) {
+		URI uri = resolver == null ? attachmentProvider.getURI(namespace) : resolver.getURI(namespace);
+		return uri == null ? null : uri.toString();
+	}
+	
+	private void insertFirst(Element schema, Element child) {
+		if (schema.getFirstChild() != null) {
+			schema.insertBefore(child, schema.getFirstChild());
+		}
+		else {
+			schema.appendChild(child);
+		}
+	}
+	
+	private void importSchema(XSDMarshalContext context, Node parent, String namespace) {
+		// a schema can not import its own namespace, the type is already visible
+		if (isSameNamespace(namespace, getSchemaIndex(context, parent).getNamespace())) {
+			return;
+		}
+		boolean created = getSchemaIndex(context, parent).addImport(namespace);
+		if (listener != null) {
+			listener.schemaImported(namespace, created);
+		}
+		if (created) {
+			context.markModified(parent.getOwnerDocument());
 			Element importElement = parent.getOwnerDocument().createElement("import");
-			importElement.setAttribute("namespace", namespace);
-			String schemaLocation = null;
-			if (attachmentProvider == null) {
-				schemaLocation = "attachments:/" + namespace; 
-			}
-			else {
-				 URI uri = attachmentProvider.getURI(namespace);
-				 if (uri != null) {
-					 schemaLocation = uri.toString();
-				 }
+			// an import without a namespace imports the types without a namespace
+			if (namespace != null) {
+				importElement.setAttribute("namespace", namespace);
 			}
+			// the root schema is not an attachment, it has no location of its own but any processor already has it because it imports the attachment
+			String schemaLocation = !context.isShared() && context.isRootNamespace(namespace) ? null : getSchemaLocation(context, namespace);
 			// allow null values for schema location (e.g. in a WSDL)
 			if (schemaLocation != null && includeSchemaLocation) {
 				importElement.setAttribute("schemaLocation", schemaLocation);
 			}
-			if (parent.getOwnerDocument().getDocumentElement().getFirstChild() != null) {
-				parent.getOwnerDocument().getDocumentElement().insertBefore(importElement, parent.getOwnerDocument().getDocumentElement().getFirstChild());
-			}
-			else {
-				parent.getOwnerDocument().getDocumentElement().appendChild(importElement);
-			}
+			insertFirst(parent.getOwnerDocument().getDocumentElement(), importElement);
 		}
 	}
 	
 	protected void writeElement(Node parent, be.nabu.libs.types.api.Element<?> child) {
+		writeElement(getContext(), parent, child);
+	}
+	
+	protected void writeElement(final XSDMarshalContext context, Node parent, be.nabu.libs.types.api.Element<?> child) {
+		writeElement(context, parent, child, null);
+	}
+	
+	private void writeElement(final XSDMarshalContext context, Node parent, XSDEmissionPlan.ElementPlan plan) {
+		writeElement(context, parent, plan.getElement(), plan);
+	}
+	
+	/**
+	 * The plan is only there when the types are precompiled, otherwise everything is resolved while writing
+	 */
+	private void writeElement(final XSDMarshalContext context, Node parent, be.nabu.libs.types.api.Element<?> child, XSDEmissionPlan.ElementPlan plan) {
 		Document document = parent.getOwnerDocument();
 
-		boolean isAttribute = child instanceof Attribute || child.getName().startsWith("@");
+		boolean isAttribute = plan == null ? isAttribute(child) : plan.isAttribute();
+		if (listener != null) {
+			listener.elementWritten(child, isAttribute);
+		}
 		Element childElement = document.createElement(isAttribute ? "attribute" : "element");
-		
-		if (isAttribute) {
-			writeAttributes(childElement, blacklist(whitelist(child.getProperties(), attributeWhitelist), new NillableProperty(), new MinOccursProperty(), new MaxOccursProperty(), NameProperty.getInstance()));
-			childElement.setAttribute("name", child.getName().startsWith("@") ? child.getName().substring(1) : child.getName());
-			if (ValueUtils.getValue(new MinOccursProperty(), child.getProperties()) == 0) {
-				childElement.setAttribute("use", "optional");
+		if (plan == null) {
+			writeAttributes(childElement, getElementAttributes(child, isAttribute));
+			if (isAttribute) {
+				childElement.setAttribute("name", getAttributeName(child));
+				if (isOptional(child)) {
+					childElement.setAttribute("use", "optional");
+				}
+			}
+			if (!childElement.hasAttribute("name")) {
+				childElement.setAttribute("name", getElementName(child));
 			}
 		}
 		else {
-			writeAttributes(childElement, fixAttributes(whitelist(child.getProperties(), attributeWhitelist)));
-		}
-		
-		if (!childElement.hasAttribute("name")) {
-			childElement.setAttribute("name", child.getType().getName(child.getProperties()).replaceFirst("^@", ""));
+			setAttributes(childElement, plan.getAttributes());
 		}
 		
 		// elements can just be added to the sequence
 		if (!isAttribute) {
 			parent.appendChild(childElement);
+			if (parent.getNodeName().equals("schema")) {
+				context.setDeclaration(getDeclarationKey("element", child.getNamespace(), child.getName()), childElement);
+			}
 		}
 		// attributes have to appear after the sequence
 		else {
@@ -529,129 +1569,341 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 		}
 		// if the type is named, make sure it exists on the root somewhere
 		if (child.getType().getName() != null) {
-			Value<?>[] restrictions = blacklist(whitelist(child.getProperties(), restrictionWhitelist), attributeWhitelist);
 			// check if we need to add restrictions, currently we do this if it is a simple type and references a standard one
-			if (child.getType() instanceof SimpleType && NAMESPACE.equals(getNamespace(child.getType())) && restrictions != null && restrictions.length > 0) {
-				writeSimpleType(childElement, (SimpleType<?>) child.getType(), restrictions);
+			Value<?>[] restrictions = plan == null ? getRestrictions(child) : null;
+			if (plan == null && child.getType() instanceof SimpleType && NAMESPACE.equals(getNamespace(context, child.getType())) && restrictions.length > 0) {
+				writeSimpleType(context, childElement, (SimpleType<?>) child.getType(), restrictions, null);
+				if (deduplicateAnonymousTypes) {
+					deduplicate(context, childElement);
+				}
+			}
+			else if (plan != null && plan.getFacets() != null) {
+				writeSimpleType(context, childElement, (SimpleType<?>) child.getType(), null, plan.getFacets());
+				if (deduplicateAnonymousTypes) {
+					deduplicate(context, childElement);
+				}
 			}
 			else {
 				String prefix = "";
 				// if its not in the xsd namespace, it is custom
-				if (!NAMESPACE.equals(getNamespace(child.getType()))) {
+				if (!NAMESPACE.equals(getNamespace(context, child.getType()))) {
 					// define it if necessary
 					if (child.getType() instanceof SimpleType) {
-						define(parent, (SimpleType<?>) child.getType());
+						define(context, parent, (SimpleType<?>) child.getType());
 					}
 					else {
-						define(parent, (ComplexType) child.getType());
+						define(context, parent, (ComplexType) child.getType());
 					}
-					prefix = getNamespacePrefix(parent, getNamespace(child.getType()));
+					prefix = getNamespacePrefix(context, parent, getNamespace(context, child.getType()));
 					if (prefix != null && !prefix.isEmpty()) {
 						prefix += ":";
 					}
 				}
 				
-				String typeName = getTypeName(child.getType(), child.getProperties());
+				String typeName = plan == null || plan.getTypeName() == null ? getTypeName(context, child.getType(), child.getProperties()) : plan.getTypeName();
 				childElement.setAttribute("type", prefix + typeName);
 			}
 		}
 		else {
+			// scheduled before the type is defined so it runs once the type is fully written
+			if (deduplicateAnonymousTypes) {
+				final Element element = childElement;
+				context.schedule(new Runnable() {
+					@Override
+					public void run() {
+						deduplicate(context, element);
+					}
+				});
+			}
 			if (child.getType() instanceof SimpleType) {
-				define(childElement, (SimpleType<?>) child.getType());
+				define(context, childElement, (SimpleType<?>) child.getType());
 			}
 			else {
-				define(childElement, (ComplexType) child.getType());
+				define(context, childElement, (ComplexType) child.getType());
+			}
+		}
+	}
+	
+	/**
+	 * Compares the anonymous type of the element with the ones that were written before in the same document
+	 * The second time a type is encountered, the first one is moved to the schema as a named type and both elements reference it
+	 * Nested types are always deduplicated first so the fingerprint only has to cover the type itself and the ids of the anonymous types in it
+	 */
+	private void deduplicate(XSDMarshalContext context, Element element) {
+		Element inline = null;
+		for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element && (node.getNodeName().equals("complexType") || node.getNodeName().equals("simpleType"))) {
+				inline = (Element) node;
+				break;
+			}
+		}
+		if (inline == null) {
+			return;
+		}
+		Document document = element.getOwnerDocument();
+		XSDMarshalContext.AnonymousTypes anonymousTypes = context.getAnonymousTypes(document);
+		StringBuilder builder = new StringBuilder();
+		fingerprint(anonymousTypes, inline, builder);
+		String fingerprint = builder.toString();
+		XSDMarshalContext.AnonymousType existing = anonymousTypes.get(fingerprint);
+		if (existing == null) {
+			anonymousTypes.add(fingerprint, element, inline);
+			return;
+		}
+		String namespace = document.getDocumentElement().getAttribute("targetNamespace");
+		if (existing.getName() == null) {
+			Element original = existing.getInline();
+			String kind = original.getNodeName();
+			String name;
+			do {
+				name = existing.getElement().getAttribute("name") + "Type" + anonymousTypes.nextCounter();
+			}
+			while (context.getDeclaration(getDeclarationKey(kind, namespace, name)) != null);
+			original.setAttribute("name", name);
+			existing.getElement().removeChild(original);
+			document.getDocumentElement().appendChild(original);
+			// both elements are in the same schema as the type
+			String qualifiedName = getQualifiedName(context, existing.getElement(), namespace, name);
+			existing.getElement().setAttribute("type", qualifiedName);
+			context.setDeclaration(getDeclarationKey(kind, namespace, name), original);
+			anonymousTypes.setName(existing, qualifiedName);
+		}
+		element.removeChild(inline);
+		element.setAttribute("type", existing.getName());
+		context.markModified(document);
+	}
+	
+	private void fingerprint(XSDMarshalContext.AnonymousTypes anonymousTypes, Element element, StringBuilder builder) {
+		Map<String, String> attributes = new TreeMap<String, String>();
+		NamedNodeMap map = element.getAttributes();
+		for (int i = 0; i < map.getLength(); i++) {
+			Attr attr = (Attr) map.item(i);
+			String value = attr.getValue();
+			// a reference to a deduplicated type is the same as having it inline
+			if (attr.getName().equals("type")) {
+				XSDMarshalContext.AnonymousType referenced = anonymousTypes.getByName(value);
+				if (referenced != null) {
+					value = "#" + referenced.getId();
+				}
 			}
+			attributes.put(attr.getName(), value);
 		}
+		List<Element> children = new ArrayList<Element>();
+		for (Node node = element.getFirstChild(); node != null; node = node.getNextSibling()) {
+			if (node instanceof Element) {
+				XSDMarshalContext.AnonymousType nested = anonymousTypes.getByInline(node);
+				if (nested != null) {
+					attributes.put("type", "#" + nested.getId());
+				}
+				else {
+					children.add((Element) node);
+				}
+			}
+		}
+		builder.append('<').append(element.getNodeName());
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			builder.append(' ').append(attribute.getKey()).append("=\"").append(attribute.getValue()).append('"');
+		}
+		builder.append('>');
+		for (Element child : children) {
+			fingerprint(anonymousTypes, child, builder);
+		}
+		builder.append("</>");
 	}
 	
+	/**
+	 * The attachments of the define() calls, pass a context to marshal() to get the attachments of a marshalled type
+	 */
 	public Map<String, Document> getAttachments() {
-		return attachments;
+		return getContext().getAttachments();
 	}
 	
-	private void writeSimpleType(Node parent, SimpleType<?> simpleType) {
-		writeSimpleType(parent, simpleType, null);
+	private void writeSimpleType(XSDMarshalContext context, Node parent, SimpleType<?> simpleType) {
+		writeSimpleType(context, parent, simpleType, null, null);
 	}
 	
-	@SuppressWarnings("rawtypes")
-	private void writeSimpleType(Node parent, SimpleType<?> simpleType, Value<?> [] restrictedDefinitions) {
+	/**
+	 * The facets are those of a plan, without them the restrictions are written (those of the type itself if there are none)
+	 */
+	private void writeSimpleType(XSDMarshalContext context, Node parent, SimpleType<?> simpleType, Value<?>[] restrictions, List<String[]> facets) {
+		if (listener != null) {
+			listener.simpleTypeWritten(simpleType);
+		}
 		boolean standalone = parent.getNodeName().equals("schema");
 		Element simpleTypeElement = parent.getOwnerDocument().createElement("simpleType");
 		if (standalone) {
-			simpleTypeElement.setAttribute("name", getTypeName(simpleType));
+			simpleTypeElement.setAttribute("name", getTypeName(context, simpleType));
+			context.setDeclaration(getDeclarationKey("simpleType", simpleType.getNamespace(), getTypeName(context, simpleType)), simpleTypeElement);
 		}
 		Element restrictionElement = parent.getOwnerDocument().createElement("restriction");
 		// you can extend a basic type (like string) or another simple type
 		// note that the restrictions are defined in the element around the type, not the type itself
-		// assume default string as parent is none is given
-		String simpleTypeName = simpleType.getSuperType() == null ? "string" : simpleType.getSuperType().getName();
-		restrictionElement.setAttribute("base", simpleTypeName);
-		if (restrictedDefinitions == null) {
-			restrictedDefinitions = whitelist(simpleType.getProperties(), restrictionWhitelist);
+		restrictionElement.setAttribute("base", getRestrictionBase(simpleType));
+		if (facets != null) {
+			for (String [] facet : facets) {
+				writeFacet(restrictionElement, facet[0], facet[1]);
+			}
 		}
-		for (Value<?> restrictedDefinition : restrictedDefinitions) {
-			if (restrictedDefinition.getProperty().equals(new EnumerationProperty())) {
-				for (Object object : (List) restrictedDefinition.getValue()) {
-					Element restriction = parent.getOwnerDocument().createElement(restrictedDefinition.getProperty().getName());
-					String string = converter.convert(object, String.class);
-					restriction.setAttribute("value", string);
-					restrictionElement.appendChild(restriction);							
+		else {
+			for (Value<?> restriction : restrictions == null ? getRestrictions(simpleType) : restrictions) {
+				if (isEnumeration(restriction)) {
+					for (String [] facet : getEnumerationFacets(restriction)) {
+						writeFacet(restrictionElement, facet[0], facet[1]);
+					}
+				}
+				else {
+					writeFacet(restrictionElement, restriction.getProperty().getName(), convert(restriction.getValue()));
 				}
-			}
-			else {
-				Element restriction = parent.getOwnerDocument().createElement(restrictedDefinition.getProperty().getName());
-				String string = converter.convert(restrictedDefinition.getValue(), String.class);
-				restriction.setAttribute("value", string);
-				restrictionElement.appendChild(restriction);
 			}
 		}
 		simpleTypeElement.appendChild(restrictionElement);
 		parent.appendChild(simpleTypeElement);
 	}
 	
-	private String getNamespacePrefix(Node node, String namespace) {
+	private void writeFacet(Element restrictionElement, String name, String value) {
+		Element restriction = restrictionElement.getOwnerDocument().createElement(name);
+		restriction.setAttribute("value", value);
+		restrictionElement.appendChild(restriction);
+	}
+	
+	private String getNamespacePrefix(XSDMarshalContext context, Node node, String namespace) {
+		String prefix;
+		boolean created = false;
 		if (NAMESPACE.equals(namespace)) {
-			return null;
+			prefix = null;
+		}
+		// the index knows the namespace of the document itself, it is "tns" in every schema
+		else if (namespace == null) {
+			prefix = "tns";
 		}
-		else if (namespace == null || (this.namespace != null && this.namespace.equals(namespace))) {
-			return "tns";
+		else {
+			XSDMarshalContext.SchemaIndex index = getSchemaIndex(context, node);
+			prefix = index.getPrefix(namespace);
+			// not yet registered
+			if (prefix == null) {
+				prefix = index.newPrefix(namespace);
+				getOwnerDocument(node).getDocumentElement().setAttribute("xmlns:" + prefix, namespace);
+				context.markModified(getOwnerDocument(node));
+				created = true;
+			}
 		}
-		while (node != null && !node.getNodeName().equals("schema")) {
-			node = node.getParentNode();
+		if (listener != null) {
+			listener.namespacePrefixResolved(namespace, created);
 		}
-		if (node == null) {
-			throw new RuntimeException("Could not find prefix for namespace '" + namespace + "' because the schema could not be found");
+		return prefix;
+	}
+	
+	private Document getOwnerDocument(Node node) {
+		return node instanceof Document ? (Document) node : node.getOwnerDocument();
+	}
+	
+	/**
+	 * The schemas we create are indexed immediately, anything else is indexed the first time we need it
+	 */
+	private XSDMarshalContext.SchemaIndex getSchemaIndex(XSDMarshalContext context, Node node) {
+		Document document = getOwnerDocument(node);
+		XSDMarshalContext.SchemaIndex index = context.getSchemaIndex(document);
+		if (index == null) {
+			Element schema = document.getDocumentElement();
+			if (schema == null || !schema.getNodeName().equals("schema")) {
+				throw new RuntimeException("Could not find the schema for node '" + node.getNodeName() + "'");
+			}
+			index = newSchemaIndex(document, null);
+			context.setSchemaIndex(document, index);
 		}
-		NamedNodeMap attributes = ((Element) node).getAttributes();
-		int highestCount = -1;
+		return index;
+	}
+	
+	/**
+	 * Indexes an existing schema, the namespace is only passed in for schemas that we created ourselves
+	 */
+	private XSDMarshalContext.SchemaIndex newSchemaIndex(Document document, String namespace) {
+		Element schema = document.getDocumentElement();
+		XSDMarshalContext.SchemaIndex index = new XSDMarshalContext.SchemaIndex(namespace);
+		NamedNodeMap attributes = schema.getAttributes();
 		for (int i = 0; i < attributes.getLength(); i++) {
 			Attr attr = (Attr) attributes.item(i);
 			if (attr.getName().startsWith("xmlns:")) {
-				if (attr.getValue().equals(namespace)) {
-					return attr.getName().replaceAll(".*:", "");
-				}
-				else {
-					if (attr.getName().matches("xmlns:tns[0-9]+")) {
-						int counter = new Integer(attr.getName().replaceAll("xmlns:tns([0-9]+)$", "$1"));
-						if (counter > highestCount) {
-							highestCount = counter;
-						}
-					}
-				}
+				index.addPrefix(attr.getValue(), attr.getName().substring("xmlns:".length()));
 			}
 		}
-		// not yet registered
-		String prefix = "tns" + ++highestCount;
-		((Element) node).setAttribute("xmlns:" + prefix, namespace);
-		return prefix;
+		for (int i = 0; i < schema.getChildNodes().getLength(); i++) {
+			Node child = schema.getChildNodes().item(i);
+			if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("import")) {
+				index.addImport(((Element) child).getAttribute("namespace"));
+			}
+			// includes are registered under our own namespace
+			else if (child.getNodeType() == Node.ELEMENT_NODE && child.getNodeName().equals("include") && namespace != null) {
+				index.addImport(namespace);
+			}
+		}
+		return index;
 	}
 	
+	/**
+	 * The root schema of the define() calls
+	 */
 	public Document getSchema() {
-		return schema;
+		return getContext().getSchema();
 	}
 	
 	public String getNamespace(Type type) {
-		return type.getNamespace() == null || type.getNamespace().trim().isEmpty() ? namespace : type.getNamespace();
+		return getNamespace(getContext(), type);
+	}
+	
+	public String getNamespace(XSDMarshalContext context, Type type) {
+		return type.getNamespace() == null || type.getNamespace().trim().isEmpty() ? context.getDefaultNamespace() : type.getNamespace();
+	}
+	
+	public boolean isDeduplicateAnonymousTypes() {
+		return deduplicateAnonymousTypes;
+	}
+
+	/**
+	 * Note that this is not supported by the streaming writer, the schemas are built in memory instead
+	 */
+	public void setDeduplicateAnonymousTypes(boolean deduplicateAnonymousTypes) {
+		this.deduplicateAnonymousTypes = deduplicateAnonymousTypes;
+	}
+	
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * Makes the output byte-stable so it can be cached by its hash (see MarshalledSchema), this costs an additional pass over each document
+	 */
+	public void setCanonical(boolean canonical) {
+		this.canonical = canonical;
+	}
+	
+	public boolean isCompact() {
+		return compact;
+	}
+
+	public boolean isOmitXMLDeclaration() {
+		return omitXMLDeclaration;
+	}
+
+	@Override
+	public void setOmitXMLDeclaration(boolean omitXMLDeclaration) {
+		super.setOmitXMLDeclaration(omitXMLDeclaration);
+		this.omitXMLDeclaration = omitXMLDeclaration;
+	}
+
+	public void setCompact(boolean compact) {
+		this.compact = compact;
+	}
+
+	public boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * Gzips the root and the attachments when they are written to their output stream, the byte arrays of a MarshalledSchema are not compressed (it has its own method for that)
+	 */
+	public void setCompressed(boolean compressed) {
+		this.compressed = compressed;
 	}
 	
 	public boolean isIncludeSchemaLocation() {
@@ -667,6 +1919,360 @@ public class XSDDefinitionMarshaller extends XMLDefinitionMarshaller {
 
 	public void setHidePrivatelyScoped(boolean hidePrivatelyScoped) {
 		this.hidePrivatelyScoped = hidePrivatelyScoped;
+		// the hidden children are left out of the plans
+		invalidatePlans();
+	}
+
+	public XSDMarshalListener getListener() {
+		return listener;
+	}
+
+	public void setListener(XSDMarshalListener listener) {
+		this.listener = listener;
+	}
+	
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Note that in streaming mode attachments are only written if an attachment provider is set, they are not available through getAttachments()
+	 * A split root or deduplication of anonymous types can not be streamed, those schemas are still built in memory
+	 */
+	public void setStreaming(boolean streaming) {
+		this.streaming = streaming;
+	}
+	
+	public boolean isParallel() {
+		return parallel;
+	}
+
+	/**
+	 * Note that the listener (if any) is called from multiple threads in parallel mode
+	 */
+	public void setParallel(boolean parallel) {
+		this.parallel = parallel;
+	}
+	
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
+	}
+	
+	public boolean isSplitRoot() {
+		return splitRoot;
+	}
+
+	/**
+	 * Note that this has no effect on marshalLazily() and that marshal() uses the DOM even if streaming is set
+	 */
+	public void setSplitRoot(boolean splitRoot) {
+		this.splitRoot = splitRoot;
+	}
+	
+	public boolean isPrecompiled() {
+		return precompiled;
+	}
+
+	/**
+	 * Only use this if the types don't change while the marshaller is in use, or invalidate the plans when they do
+	 */
+	public void setPrecompiled(boolean precompiled) {
+		this.precompiled = precompiled;
+		if (!precompiled) {
+			invalidatePlans();
+		}
+	}
+	
+	/**
+	 * Drops the plan of the type, it is compiled again the next time the type is written
+	 * Note that a plan also captures the elements of the type so a type has to be invalidated if its children are changed
+	 */
+	public void invalidatePlan(ComplexType type) {
+		plans.remove(type);
+	}
+	
+	public void invalidatePlans() {
+		plans.clear();
+	}
+	
+	/**
+	 * Only used when precompiling, the document is only used to run the attribute logic on detached elements
+	 */
+	XSDEmissionPlan getPlan(Document document, ComplexType type) {
+		SoftReference<XSDEmissionPlan> reference = plans.get(type);
+		XSDEmissionPlan plan = reference == null ? null : reference.get();
+		if (plan == null) {
+			plan = XSDEmissionPlan.compile(this, document, type);
+			plans.put(type, new SoftReference<XSDEmissionPlan>(plan));
+		}
+		return plan;
+	}
+	
+	/**
+	 * A single child or a choice between several children
+	 */
+	static class Particle {
+		private Group choice;
+		private List<be.nabu.libs.types.api.Element<?>> elements;
+		
+		Particle(Group choice, List<be.nabu.libs.types.api.Element<?>> elements) {
+			this.choice = choice;
+			this.elements = elements;
+		}
+		
+		public Group getChoice() {
+			return choice;
+		}
+		public List<be.nabu.libs.types.api.Element<?>> getElements() {
+			return elements;
+		}
+	}
+	
+	/**
+	 * The methods below are shared with the streaming writer so both produce the same schema
+	 */
+	boolean isUseExtension() {
+		return useExtension;
+	}
+	
+	boolean isAttribute(be.nabu.libs.types.api.Element<?> child) {
+		return child instanceof Attribute || child.getName().startsWith("@");
+	}
+	
+	boolean isValueElement(ComplexType type, be.nabu.libs.types.api.Element<?> child) {
+		return child.getName().equals(type.get(ComplexType.SIMPLE_TYPE_VALUE));
+	}
+	
+	boolean isHidden(be.nabu.libs.types.api.Element<?> child) {
+		if (hidePrivatelyScoped) {
+			Value<Scope> property = child.getProperty(ScopeProperty.getInstance());
+			return property != null && property.getValue() == Scope.PRIVATE;
+		}
+		return false;
+	}
+	
+	boolean isOptional(be.nabu.libs.types.api.Element<?> child) {
+		return ValueUtils.getValue(MIN_OCCURS, child.getProperties()) == 0;
+	}
+	
+	Iterator<be.nabu.libs.types.api.Element<?>> getChildIterator(ComplexType type) {
+		return useExtension ? type.iterator() : TypeUtils.getAllChildrenIterator(type);
+	}
+	
+	private static boolean contains(Property<?> [] properties, Property<?> property) {
+		for (Property<?> candidate : properties) {
+			if (candidate.equals(property)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Filters the values on the whitelist, the array is only allocated if at least one value matches
+	 */
+	private static Value<?>[] filter(Value<?>[] values, Property<?> [] whitelist, Property<?> excluded) {
+		int count = 0;
+		for (Value<?> value : values) {
+			if (contains(whitelist, value.getProperty()) && (excluded == null || !excluded.equals(value.getProperty()))) {
+				count++;
+			}
+		}
+		if (count == 0) {
+			return NO_VALUES;
+		}
+		Value<?>[] result = new Value<?>[count];
+		int index = 0;
+		for (Value<?> value : values) {
+			if (contains(whitelist, value.getProperty()) && (excluded == null || !excluded.equals(value.getProperty()))) {
+				result[index++] = value;
+			}
+		}
+		return result;
+	}
+	
+	Value<?>[] getComplexTypeAttributes(ComplexType type) {
+		return filter(type.getProperties(), attributeWhitelist, NAME);
+	}
+	
+	/**
+	 * This combines the whitelist with fixAttributes() in a single pass
+	 */
+	Value<?>[] getElementAttributes(be.nabu.libs.types.api.Element<?> child, boolean isAttribute) {
+		// all the whitelisted properties are element-specific
+		if (isAttribute) {
+			return NO_VALUES;
+		}
+		if (fixAttributesOverridden) {
+			return fixAttributes(filter(child.getProperties(), attributeWhitelist, null));
+		}
+		Value<?>[] values = child.getProperties();
+		int count = 0;
+		boolean hasNillable = false;
+		for (Value<?> value : values) {
+			if (contains(attributeWhitelist, value.getProperty())) {
+				if (NILLABLE.equals(value.getProperty())) {
+					hasNillable = true;
+					// this is the xsd default, no need to explicitly set it
+					if (Boolean.FALSE.equals(value.getValue())) {
+						continue;
+					}
+				}
+				count++;
+			}
+		}
+		// if there is no nillable value, we assume the default ("true") is set, at which point we should set this in the xsd
+		Value<?>[] result = new Value<?>[hasNillable ? count : count + 1];
+		int index = 0;
+		for (Value<?> value : values) {
+			if (contains(attributeWhitelist, value.getProperty())) {
+				if (NILLABLE.equals(value.getProperty()) && Boolean.FALSE.equals(value.getValue())) {
+					continue;
+				}
+				result[index++] = value;
+			}
+		}
+		if (!hasNillable) {
+			result[index] = NILLABLE_DEFAULT;
+		}
+		return result;
+	}
+	
+	private static boolean isFixAttributesOverridden(Class<?> clazz) {
+		for (; clazz != XSDDefinitionMarshaller.class; clazz = clazz.getSuperclass()) {
+			try {
+				clazz.getDeclaredMethod("fixAttributes", Value[].class);
+				return true;
+			}
+			catch (NoSuchMethodException e) {
+				// check the parent
+			}
+		}
+		return false;
+	}
+	
+	Value<?>[] getRestrictions(be.nabu.libs.types.api.Element<?> child) {
+		return filter(child.getProperties(), restrictionWhitelist, null);
+	}
+	
+	Value<?>[] getRestrictions(SimpleType<?> simpleType) {
+		return filter(simpleType.getProperties(), restrictionWhitelist, null);
+	}
+	
+	boolean isEnumeration(Value<?> restriction) {
+		return ENUMERATION.equals(restriction.getProperty());
+	}
+	
+	String getAttributeName(be.nabu.libs.types.api.Element<?> child) {
+		return child.getName().startsWith("@") ? child.getName().substring(1) : child.getName();
+	}
+	
+	String getElementName(be.nabu.libs.types.api.Element<?> child) {
+		return child.getType().getName(child.getProperties()).replaceFirst("^@", "");
+	}
+	
+	String getRestrictionBase(SimpleType<?> simpleType) {
+		// assume default string as parent is none is given
+		return simpleType.getSuperType() == null ? "string" : simpleType.getSuperType().getName();
+	}
+	
+	String convert(Object object) {
+		// skip the converter for the common cases, the string form of these is fixed
+		if (object instanceof String) {
+			return (String) object;
+		}
+		else if (object instanceof Integer || object instanceof Long || object instanceof Short || object instanceof Byte || object instanceof BigInteger || object instanceof Boolean) {
+			return object.toString();
+		}
+		return converter.convert(object, String.class);
+	}
+	
+	/**
+	 * Converts the restrictions to the facets (name and value) that have to be written, an enumeration results in a facet per value
+	 */
+	List<String[]> getFacets(Value<?>[] restrictions) {
+		List<String[]> facets = new ArrayList<String[]>();
+		for (Value<?> restriction : restrictions) {
+			if (isEnumeration(restriction)) {
+				facets.addAll(getEnumerationFacets(restriction));
+			}
+			else {
+				facets.add(new String[] { restriction.getProperty().getName(), convert(restriction.getValue()) });
+			}
+		}
+		return facets;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private List<String[]> getEnumerationFacets(Value<?> enumeration) {
+		List values = (List) enumeration.getValue();
+		ConvertedEnumeration converted = enumerations.get(values);
+		// the list could have been modified since it was converted
+		if (converted == null || !converted.isConvertedFrom(values)) {
+			List<String[]> facets = new ArrayList<String[]>(values.size());
+			for (Object object : values) {
+				facets.add(new String[] { enumeration.getProperty().getName(), convert(object) });
+			}
+			converted = new ConvertedEnumeration(values.toArray(), Collections.unmodifiableList(facets));
+			enumerations.put(values, converted);
+		}
+		return converted.facets;
+	}
+	
+	/**
+	 * This must not refer to the list of values, it would keep the weak key alive, instead it keeps a copy of the values it was converted from
+	 */
+	private static class ConvertedEnumeration {
+		private Object [] values;
+		private List<String[]> facets;
+		
+		ConvertedEnumeration(Object [] values, List<String[]> facets) {
+			this.values = values;
+			this.facets = facets;
+		}
+		
+		/**
+		 * The values are compared by identity, this is cheap compared to the conversion and also catches a value that was replaced in place
+		 */
+		boolean isConvertedFrom(List<?> list) {
+			if (list.size() != values.length) {
+				return false;
+			}
+			int index = 0;
+			for (Object value : list) {
+				if (value != values[index++]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+	
+	private static void setAttributes(Element element, Map<String, String> attributes) {
+		for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+			element.setAttribute(attribute.getKey(), attribute.getValue());
+		}
+	}
+	
+	Document newScratchDocument() {
+		return newDocument(true);
+	}
+	
+	/**
+	 * Runs the values through the regular attribute logic on a detached element and copies the result
+	 */
+	void writeAttributes(Document scratch, Map<String, String> target, Value<?>...values) {
+		Element element = scratch.createElement("scratch");
+		writeAttributes(element, values);
+		NamedNodeMap attributes = element.getAttributes();
+		for (int i = 0; i < attributes.getLength(); i++) {
+			Attr attr = (Attr) attributes.item(i);
+			target.put(attr.getName(), attr.getValue());
+		}
 	}
 	
 }
@@ -0,0 +1,763 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.URI;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import be.nabu.libs.converter.ConverterFactory;
+import be.nabu.libs.converter.api.Converter;
+import be.nabu.libs.property.api.Property;
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.TypeRegistryImpl;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.base.Choice;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.AttributeQualifiedDefaultProperty;
+import be.nabu.libs.types.properties.ElementQualifiedDefaultProperty;
+import be.nabu.libs.types.properties.EnumerationProperty;
+import be.nabu.libs.types.properties.FormatProperty;
+import be.nabu.libs.types.properties.LengthProperty;
+import be.nabu.libs.types.properties.MaxExclusiveProperty;
+import be.nabu.libs.types.properties.MaxInclusiveProperty;
+import be.nabu.libs.types.properties.MaxLengthProperty;
+import be.nabu.libs.types.properties.MaxOccursProperty;
+import be.nabu.libs.types.properties.MinExclusiveProperty;
+import be.nabu.libs.types.properties.MinInclusiveProperty;
+import be.nabu.libs.types.properties.MinLengthProperty;
+import be.nabu.libs.types.properties.MinOccursProperty;
+import be.nabu.libs.types.properties.NillableProperty;
+import be.nabu.libs.types.properties.PatternProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Reads xml schemas into structures, it is the counterpart of the XSDDefinitionMarshaller.
+ * The schemas are parsed with StAX into lightweight declarations (no DOM is built), the types are only built once all the schemas are parsed so references can point forward.
+ * Imports and includes are resolved through the schema provider (if any).
+ * 
+ * There are some limitations:
+ * - the type model has no way to express named simple types, elements that reference one get the base type with the restrictions of the simple type (and its parents)
+ * - nested choices (and sequences in a choice) are flattened into the outer choice
+ * - groups, attribute groups, wildcards, lists and unions are skipped
+ * - date, time and the gregorian types are dates with the xsd type as format, dateTime is a plain date
+ */
+public class XSDDefinitionUnmarshaller {
+	
+	private static final String NAMESPACE = XSDDefinitionMarshaller.NAMESPACE;
+	
+	private static final Map<String, Class<?>> BUILT_IN_TYPES = new HashMap<String, Class<?>>();
+	
+	/**
+	 * The date types other than dateTime, the format property tells them apart
+	 */
+	private static final List<String> DATE_TYPES = Arrays.asList("date", "time", "gYear", "gYearMonth", "gMonth", "gMonthDay", "gDay");
+	
+	static {
+		for (String name : new String[] { "string", "normalizedString", "token", "language", "Name", "NCName", "NMTOKEN", "ID", "IDREF", "ENTITY", "QName", "duration", "anySimpleType", "anyType" }) {
+			BUILT_IN_TYPES.put(name, String.class);
+		}
+		for (String name : new String[] { "integer", "nonNegativeInteger", "nonPositiveInteger", "positiveInteger", "negativeInteger", "unsignedLong" }) {
+			BUILT_IN_TYPES.put(name, BigInteger.class);
+		}
+		for (String name : DATE_TYPES) {
+			BUILT_IN_TYPES.put(name, Date.class);
+		}
+		BUILT_IN_TYPES.put("dateTime", Date.class);
+		BUILT_IN_TYPES.put("boolean", Boolean.class);
+		BUILT_IN_TYPES.put("int", Integer.class);
+		BUILT_IN_TYPES.put("unsignedShort", Integer.class);
+		BUILT_IN_TYPES.put("long", Long.class);
+		BUILT_IN_TYPES.put("unsignedInt", Long.class);
+		BUILT_IN_TYPES.put("short", Short.class);
+		BUILT_IN_TYPES.put("unsignedByte", Short.class);
+		BUILT_IN_TYPES.put("byte", Byte.class);
+		BUILT_IN_TYPES.put("decimal", BigDecimal.class);
+		BUILT_IN_TYPES.put("double", Double.class);
+		BUILT_IN_TYPES.put("float", Float.class);
+		BUILT_IN_TYPES.put("base64Binary", byte[].class);
+		BUILT_IN_TYPES.put("hexBinary", byte[].class);
+		BUILT_IN_TYPES.put("anyURI", URI.class);
+	}
+	
+	private SchemaProvider schemaProvider;
+	
+	private Converter converter = ConverterFactory.getInstance().getConverter();
+	
+	private XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+	
+	/**
+	 * Whether the "Type" suffix is removed from the names of complex types
+	 */
+	private boolean removeTypeSuffix;
+	
+	/**
+	 * The registry of the last unmarshal()
+	 */
+	private volatile TypeRegistryImpl registry;
+	
+	public XSDDefinitionUnmarshaller() {
+		// partner schemas should not be able to pull in external entities
+		inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		inputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+	}
+	
+	/**
+	 * Parses the schema (and the schemas it imports) and returns the type of the first global element, this is the root written by the marshaller
+	 * All the named complex types and global elements can be found in the registry afterwards
+	 */
+	public ComplexType unmarshal(InputStream input) throws IOException, ParseException {
+		TypeRegistryImpl registry = new TypeRegistryImpl();
+		ComplexType type = unmarshal(input, registry);
+		this.registry = registry;
+		return type;
+	}
+	
+	/**
+	 * Like unmarshal(InputStream) but the named complex types and global elements are registered in the given registry
+	 */
+	public ComplexType unmarshal(InputStream input, TypeRegistryImpl registry) throws IOException, ParseException {
+		ParseContext context = new ParseContext(registry);
+		
+		// the namespace and location of the schemas that still need to be parsed
+		Deque<String[]> pending = new ArrayDeque<String[]>();
+		Set<String> parsed = new HashSet<String>();
+		ElementDeclaration root = parse(context, input, pending);
+		while (!pending.isEmpty()) {
+			String [] reference = pending.poll();
+			if (schemaProvider != null && parsed.add(reference[0] + "#" + reference[1])) {
+				InputStream imported = schemaProvider.getInput(reference[0], reference[1]);
+				if (imported != null) {
+					try {
+						parse(context, imported, pending);
+					}
+					finally {
+						imported.close();
+					}
+				}
+			}
+		}
+		
+		for (String key : context.complexTypes.keySet()) {
+			getComplexType(context, key);
+		}
+		be.nabu.libs.types.api.Element<?> rootElement = null;
+		for (ElementDeclaration declaration : context.elements.values()) {
+			be.nabu.libs.types.api.Element<?> element = buildElement(context, declaration, null);
+			context.registry.register(element);
+			if (declaration == root) {
+				rootElement = element;
+			}
+		}
+		if (rootElement != null && rootElement.getType() instanceof ComplexType) {
+			ComplexType type = (ComplexType) rootElement.getType();
+			// an anonymous root is named after its element
+			if (type instanceof Structure && type.getName() == null) {
+				((Structure) type).setName(rootElement.getName());
+				((Structure) type).setNamespace(rootElement.getNamespace());
+			}
+			return type;
+		}
+		return null;
+	}
+	
+	/**
+	 * The types and elements of the last unmarshal(InputStream), use unmarshal(InputStream, TypeRegistryImpl) when the unmarshaller is shared
+	 */
+	public TypeRegistryImpl getRegistry() {
+		return registry;
+	}
+	
+	public boolean isRemoveTypeSuffix() {
+		return removeTypeSuffix;
+	}
+
+	/**
+	 * The marshaller adds "Type" to the name of every complex type it defines, set this for schemas it wrote to get the original names back
+	 * By default the names are kept as they are in the schema
+	 */
+	public void setRemoveTypeSuffix(boolean removeTypeSuffix) {
+		this.removeTypeSuffix = removeTypeSuffix;
+	}
+	
+	public SchemaProvider getSchemaProvider() {
+		return schemaProvider;
+	}
+
+	public void setSchemaProvider(SchemaProvider schemaProvider) {
+		this.schemaProvider = schemaProvider;
+	}
+
+	/**
+	 * Returns the first global element of the schema (if any)
+	 */
+	private ElementDeclaration parse(ParseContext context, InputStream input, Deque<String[]> pending) throws IOException, ParseException {
+		try {
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(input);
+			try {
+				if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || !isSchema(reader, "schema")) {
+					throw new ParseException("Not an xml schema: " + reader.getName(), 0);
+				}
+				return parseSchema(context, reader, pending);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+	
+	private ElementDeclaration parseSchema(ParseContext context, XMLStreamReader reader, Deque<String[]> pending) throws XMLStreamException, ParseException {
+		String namespace = getAttribute(reader, "targetNamespace");
+		context.elementQualified = "qualified".equals(getAttribute(reader, "elementFormDefault"));
+		context.attributeQualified = "qualified".equals(getAttribute(reader, "attributeFormDefault"));
+		ElementDeclaration first = null;
+		while (nextChild(reader)) {
+			String name = reader.getLocalName();
+			if (!isSchema(reader, name)) {
+				skip(reader);
+			}
+			else if (name.equals("import")) {
+				pending.add(new String[] { getAttribute(reader, "namespace"), getAttribute(reader, "schemaLocation") });
+				skip(reader);
+			}
+			else if (name.equals("include")) {
+				pending.add(new String[] { namespace, getAttribute(reader, "schemaLocation") });
+				skip(reader);
+			}
+			else if (name.equals("element")) {
+				ElementDeclaration element = parseElement(context, reader, namespace, false);
+				context.elements.put(getKey(namespace, element.name), element);
+				if (first == null) {
+					first = element;
+				}
+			}
+			else if (name.equals("complexType")) {
+				TypeDeclaration type = parseComplexType(context, reader, namespace);
+				context.complexTypes.put(getKey(namespace, type.name), type);
+			}
+			else if (name.equals("simpleType")) {
+				TypeDeclaration type = parseSimpleType(reader, namespace);
+				context.simpleTypes.put(getKey(namespace, type.name), type);
+			}
+			else {
+				skip(reader);
+			}
+		}
+		return first;
+	}
+	
+	private ElementDeclaration parseElement(ParseContext context, XMLStreamReader reader, String namespace, boolean attribute) throws XMLStreamException, ParseException {
+		ElementDeclaration element = new ElementDeclaration();
+		element.namespace = namespace;
+		element.attribute = attribute;
+		element.name = getAttribute(reader, "name");
+		element.type = getQName(reader, "type");
+		element.reference = getQName(reader, "ref");
+		if (attribute) {
+			// attributes are optional unless stated otherwise
+			element.minOccurs = "required".equals(getAttribute(reader, "use")) ? 1 : 0;
+		}
+		else {
+			element.minOccurs = getMinOccurs(reader);
+			element.maxOccurs = getMaxOccurs(reader);
+			element.nillable = "true".equals(getAttribute(reader, "nillable"));
+		}
+		while (nextChild(reader)) {
+			if (isSchema(reader, "complexType")) {
+				element.anonymous = parseComplexType(context, reader, namespace);
+			}
+			else if (isSchema(reader, "simpleType")) {
+				element.anonymous = parseSimpleType(reader, namespace);
+			}
+			else {
+				skip(reader);
+			}
+		}
+		return element;
+	}
+	
+	private TypeDeclaration parseComplexType(ParseContext context, XMLStreamReader reader, String namespace) throws XMLStreamException, ParseException {
+		TypeDeclaration type = new TypeDeclaration();
+		type.namespace = namespace;
+		type.name = getAttribute(reader, "name");
+		type.complex = true;
+		type.elementQualified = context.elementQualified;
+		type.attributeQualified = context.attributeQualified;
+		while (nextChild(reader)) {
+			if (isSchema(reader, "simpleContent") || isSchema(reader, "complexContent")) {
+				type.simpleContent = reader.getLocalName().equals("simpleContent");
+				while (nextChild(reader)) {
+					if (isSchema(reader, "extension") || isSchema(reader, "restriction")) {
+						type.base = getQName(reader, "base");
+						parseContent(context, reader, type, null);
+					}
+					else {
+						skip(reader);
+					}
+				}
+			}
+			else {
+				parseParticle(context, reader, type, null);
+			}
+		}
+		return type;
+	}
+	
+	/**
+	 * Parses the children of the current element as particles of the type, the elements are added to the choice (if any) as well
+	 */
+	private void parseContent(ParseContext context, XMLStreamReader reader, TypeDeclaration type, ChoiceDeclaration choice) throws XMLStreamException, ParseException {
+		while (nextChild(reader)) {
+			parseParticle(context, reader, type, choice);
+		}
+	}
+	
+	private void parseParticle(ParseContext context, XMLStreamReader reader, TypeDeclaration type, ChoiceDeclaration choice) throws XMLStreamException, ParseException {
+		if (isSchema(reader, "sequence") || isSchema(reader, "all")) {
+			parseContent(context, reader, type, choice);
+		}
+		else if (isSchema(reader, "choice")) {
+			if (choice == null) {
+				choice = new ChoiceDeclaration();
+				choice.minOccurs = getMinOccurs(reader);
+				choice.maxOccurs = getMaxOccurs(reader);
+				type.choices.add(choice);
+			}
+			parseContent(context, reader, type, choice);
+		}
+		else if (isSchema(reader, "element")) {
+			ElementDeclaration element = parseElement(context, reader, type.namespace, false);
+			type.children.add(element);
+			if (choice != null) {
+				choice.options.add(element);
+			}
+		}
+		else if (isSchema(reader, "attribute")) {
+			type.children.add(parseElement(context, reader, type.namespace, true));
+		}
+		// annotations, groups, wildcards...
+		else {
+			skip(reader);
+		}
+	}
+	
+	private TypeDeclaration parseSimpleType(XMLStreamReader reader, String namespace) throws XMLStreamException {
+		TypeDeclaration type = new TypeDeclaration();
+		type.namespace = namespace;
+		type.name = getAttribute(reader, "name");
+		while (nextChild(reader)) {
+			if (isSchema(reader, "restriction")) {
+				type.base = getQName(reader, "base");
+				while (nextChild(reader)) {
+					String facet = reader.getLocalName();
+					if (isSchema(reader, facet) && getFacetProperty(facet) != null) {
+						type.facets.add(new String[] { facet, getAttribute(reader, "value") });
+					}
+					skip(reader);
+				}
+			}
+			// lists and unions are treated as strings
+			else {
+				skip(reader);
+			}
+		}
+		return type;
+	}
+	
+	private Structure getComplexType(ParseContext context, String key) throws ParseException {
+		Structure structure = context.structures.get(key);
+		if (structure == null) {
+			TypeDeclaration declaration = context.complexTypes.get(key);
+			if (declaration == null) {
+				return null;
+			}
+			structure = new Structure();
+			// registered before the children are built so recursive types resolve to it
+			context.structures.put(key, structure);
+			structure.setName(getName(declaration));
+			structure.setNamespace(declaration.namespace);
+			fill(context, structure, declaration);
+			context.registry.register(structure);
+		}
+		return structure;
+	}
+	
+	private String getName(TypeDeclaration declaration) {
+		if (removeTypeSuffix && declaration.name.endsWith("Type") && declaration.name.length() > "Type".length()) {
+			return declaration.name.substring(0, declaration.name.length() - "Type".length());
+		}
+		return declaration.name;
+	}
+	
+	private void fill(ParseContext context, Structure structure, TypeDeclaration declaration) throws ParseException {
+		if (declaration.elementQualified) {
+			structure.setProperty(new ValueImpl<Boolean>(new ElementQualifiedDefaultProperty(), true));
+		}
+		if (declaration.attributeQualified) {
+			structure.setProperty(new ValueImpl<Boolean>(new AttributeQualifiedDefaultProperty(), true));
+		}
+		if (declaration.base != null) {
+			if (declaration.simpleContent) {
+				List<Value<?>> values = new ArrayList<Value<?>>();
+				SimpleType<?> simpleType = resolveSimpleType(context, declaration.base, values);
+				structure.add(newSimpleElement(ComplexType.SIMPLE_TYPE_VALUE, simpleType, structure, values));
+			}
+			else if (!NAMESPACE.equals(declaration.base.getNamespaceURI())) {
+				structure.setSuperType(resolveComplexType(context, declaration.base));
+			}
+		}
+		Map<ElementDeclaration, be.nabu.libs.types.api.Element<?>> built = new IdentityHashMap<ElementDeclaration, be.nabu.libs.types.api.Element<?>>();
+		for (ElementDeclaration child : declaration.children) {
+			be.nabu.libs.types.api.Element<?> element = buildElement(context, child, structure);
+			structure.add(element);
+			built.put(child, element);
+		}
+		// the options are children of the structure as well, the group only ties them together
+		for (ChoiceDeclaration choiceDeclaration : declaration.choices) {
+			Choice choice = new Choice();
+			for (ElementDeclaration option : choiceDeclaration.options) {
+				choice.add(built.get(option));
+			}
+			if (choiceDeclaration.minOccurs != null) {
+				choice.setProperty(new ValueImpl<Integer>(new MinOccursProperty(), choiceDeclaration.minOccurs));
+			}
+			if (choiceDeclaration.maxOccurs != null) {
+				choice.setProperty(new ValueImpl<Integer>(new MaxOccursProperty(), choiceDeclaration.maxOccurs));
+			}
+			structure.addGroup(choice);
+		}
+	}
+	
+	private be.nabu.libs.types.api.Element<?> buildElement(ParseContext context, ElementDeclaration declaration, ComplexType parent) throws ParseException {
+		ElementDeclaration definition = declaration;
+		if (declaration.reference != null) {
+			definition = context.elements.get(getKey(declaration.reference.getNamespaceURI(), declaration.reference.getLocalPart()));
+			if (definition == null) {
+				throw new ParseException("Could not resolve element: " + declaration.reference, 0);
+			}
+		}
+		List<Value<?>> values = new ArrayList<Value<?>>();
+		if (declaration.minOccurs != null) {
+			values.add(new ValueImpl<Integer>(new MinOccursProperty(), declaration.minOccurs));
+		}
+		if (declaration.maxOccurs != null) {
+			values.add(new ValueImpl<Integer>(new MaxOccursProperty(), declaration.maxOccurs));
+		}
+		if (!declaration.attribute) {
+			values.add(new ValueImpl<Boolean>(NillableProperty.getInstance(), declaration.nillable || definition.nillable));
+		}
+		String name = declaration.attribute ? "@" + definition.name : definition.name;
+		
+		Type type;
+		if (definition.anonymous != null && definition.anonymous.complex) {
+			Structure structure = new Structure();
+			structure.setNamespace(definition.namespace);
+			fill(context, structure, definition.anonymous);
+			type = structure;
+		}
+		else if (definition.anonymous != null) {
+			type = resolveSimpleType(context, definition.anonymous, values);
+		}
+		else if (definition.type != null && isComplexType(context, definition.type)) {
+			type = resolveComplexType(context, definition.type);
+		}
+		// no type at all means anyType, we treat it as a string
+		else {
+			type = resolveSimpleType(context, definition.type == null ? new QName(NAMESPACE, "string") : definition.type, values);
+		}
+		
+		if (type instanceof ComplexType) {
+			return new ComplexElementImpl(name, (ComplexType) type, parent, values.toArray(new Value<?>[values.size()]));
+		}
+		else {
+			return newSimpleElement(name, (SimpleType<?>) type, parent, values);
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private be.nabu.libs.types.api.Element<?> newSimpleElement(String name, SimpleType<?> type, ComplexType parent, List<Value<?>> values) {
+		return new SimpleElementImpl(name, type, parent, values.toArray(new Value<?>[values.size()]));
+	}
+	
+	private boolean isComplexType(ParseContext context, QName name) {
+		return context.complexTypes.containsKey(getKey(name.getNamespaceURI(), name.getLocalPart()));
+	}
+	
+	private ComplexType resolveComplexType(ParseContext context, QName name) throws ParseException {
+		ComplexType type = getComplexType(context, getKey(name.getNamespaceURI(), name.getLocalPart()));
+		if (type == null) {
+			throw new ParseException("Could not resolve complex type: " + name, 0);
+		}
+		return type;
+	}
+	
+	/**
+	 * Named simple types are resolved to their built-in base type, the facets along the way are added to the values (the most specific one wins)
+	 */
+	private SimpleType<?> resolveSimpleType(ParseContext context, QName name, List<Value<?>> values) throws ParseException {
+		if (NAMESPACE.equals(name.getNamespaceURI()) || name.getNamespaceURI().isEmpty() && BUILT_IN_TYPES.containsKey(name.getLocalPart())) {
+			Class<?> instanceClass = BUILT_IN_TYPES.get(name.getLocalPart());
+			if (instanceClass == null) {
+				instanceClass = String.class;
+			}
+			// the date types share the instance class, the format keeps the original type
+			if (DATE_TYPES.contains(name.getLocalPart())) {
+				values.add(new ValueImpl<String>(new FormatProperty(), name.getLocalPart()));
+			}
+			return SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(instanceClass);
+		}
+		TypeDeclaration declaration = context.simpleTypes.get(getKey(name.getNamespaceURI(), name.getLocalPart()));
+		if (declaration == null) {
+			throw new ParseException("Could not resolve simple type: " + name, 0);
+		}
+		return resolveSimpleType(context, declaration, values);
+	}
+	
+	private SimpleType<?> resolveSimpleType(ParseContext context, TypeDeclaration declaration, List<Value<?>> values) throws ParseException {
+		// resolve the base first so we know the instance class of the facets
+		List<Value<?>> inherited = new ArrayList<Value<?>>();
+		SimpleType<?> type = resolveSimpleType(context, declaration.base == null ? new QName(NAMESPACE, "string") : declaration.base, inherited);
+		List<Value<?>> own = getFacets(declaration, type.getInstanceClass());
+		for (Value<?> value : inherited) {
+			if (!contains(own, value.getProperty())) {
+				values.add(value);
+			}
+		}
+		values.addAll(own);
+		return type;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<Value<?>> getFacets(TypeDeclaration declaration, Class<?> instanceClass) {
+		List<Value<?>> facets = new ArrayList<Value<?>>();
+		List<Object> enumeration = null;
+		for (String [] facet : declaration.facets) {
+			if (facet[0].equals("enumeration")) {
+				if (enumeration == null) {
+					enumeration = new ArrayList<Object>();
+					facets.add(new ValueImpl(new EnumerationProperty(), enumeration));
+				}
+				enumeration.add(convert(facet[1], instanceClass));
+			}
+			else if (facet[0].equals("pattern")) {
+				facets.add(new ValueImpl(getFacetProperty(facet[0]), facet[1]));
+			}
+			else if (facet[0].endsWith("ength")) {
+				facets.add(new ValueImpl(getFacetProperty(facet[0]), Integer.valueOf(facet[1])));
+			}
+			else {
+				facets.add(new ValueImpl(getFacetProperty(facet[0]), convert(facet[1], instanceClass)));
+			}
+		}
+		return facets;
+	}
+	
+	private Object convert(String value, Class<?> instanceClass) {
+		Object converted = String.class.equals(instanceClass) ? value : converter.convert(value, instanceClass);
+		return converted == null ? value : converted;
+	}
+	
+	private static boolean contains(List<Value<?>> values, Property<?> property) {
+		for (Value<?> value : values) {
+			if (value.getProperty().equals(property)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private static Property<?> getFacetProperty(String facet) {
+		if (facet.equals("minLength")) {
+			return new MinLengthProperty();
+		}
+		else if (facet.equals("maxLength")) {
+			return new MaxLengthProperty();
+		}
+		else if (facet.equals("length")) {
+			return new LengthProperty();
+		}
+		else if (facet.equals("pattern")) {
+			return new PatternProperty();
+		}
+		else if (facet.equals("minInclusive")) {
+			return new MinInclusiveProperty();
+		}
+		else if (facet.equals("minExclusive")) {
+			return new MinExclusiveProperty();
+		}
+		else if (facet.equals("maxInclusive")) {
+			return new MaxInclusiveProperty();
+		}
+		else if (facet.equals("maxExclusive")) {
+			return new MaxExclusiveProperty();
+		}
+		else if (facet.equals("enumeration")) {
+			return new EnumerationProperty();
+		}
+		return null;
+	}
+	
+	private static Integer getMinOccurs(XMLStreamReader reader) {
+		String minOccurs = getAttribute(reader, "minOccurs");
+		return minOccurs == null ? null : Integer.valueOf(minOccurs);
+	}
+	
+	/**
+	 * 0 means unbounded
+	 */
+	private static Integer getMaxOccurs(XMLStreamReader reader) {
+		String maxOccurs = getAttribute(reader, "maxOccurs");
+		return maxOccurs == null ? null : ("unbounded".equals(maxOccurs) ? 0 : Integer.valueOf(maxOccurs));
+	}
+	
+	/**
+	 * A schema without target namespace has a null namespace while references to it resolve to the empty namespace
+	 */
+	private static String getKey(String namespace, String name) {
+		return (namespace == null ? "" : namespace) + ":" + name;
+	}
+	
+	private static boolean isSchema(XMLStreamReader reader, String localName) {
+		return NAMESPACE.equals(reader.getNamespaceURI()) && localName.equals(reader.getLocalName());
+	}
+	
+	private static String getAttribute(XMLStreamReader reader, String name) {
+		String value = reader.getAttributeValue(null, name);
+		return value == null || value.isEmpty() ? null : value;
+	}
+	
+	/**
+	 * Prefixes are resolved while the namespace context is still available
+	 */
+	private static QName getQName(XMLStreamReader reader, String name) {
+		String value = getAttribute(reader, name);
+		if (value == null) {
+			return null;
+		}
+		int index = value.indexOf(':');
+		String prefix = index < 0 ? "" : value.substring(0, index);
+		String namespace = reader.getNamespaceContext().getNamespaceURI(prefix);
+		return new QName(namespace == null ? "" : namespace, value.substring(index + 1));
+	}
+	
+	/**
+	 * Moves to the next child of the current element, returns false once the current element ends
+	 */
+	private static boolean nextChild(XMLStreamReader reader) throws XMLStreamException {
+		while (reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				return true;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				return false;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Skips the current element and everything in it
+	 */
+	private static void skip(XMLStreamReader reader) throws XMLStreamException {
+		int depth = 1;
+		while (depth > 0 && reader.hasNext()) {
+			int event = reader.next();
+			if (event == XMLStreamConstants.START_ELEMENT) {
+				depth++;
+			}
+			else if (event == XMLStreamConstants.END_ELEMENT) {
+				depth--;
+			}
+		}
+	}
+	
+	/**
+	 * The state of a single unmarshal(), the unmarshaller itself only holds the settings
+	 */
+	private static class ParseContext {
+		private Map<String, TypeDeclaration> complexTypes = new LinkedHashMap<String, TypeDeclaration>();
+		private Map<String, TypeDeclaration> simpleTypes = new HashMap<String, TypeDeclaration>();
+		private Map<String, ElementDeclaration> elements = new LinkedHashMap<String, ElementDeclaration>();
+		private Map<String, Structure> structures = new HashMap<String, Structure>();
+		private TypeRegistryImpl registry;
+		/**
+		 * The form defaults of the schema that is being parsed, they are copied to its types
+		 */
+		private boolean elementQualified, attributeQualified;
+		
+		private ParseContext(TypeRegistryImpl registry) {
+			this.registry = registry;
+		}
+	}
+	
+	private static class TypeDeclaration {
+		private String namespace, name;
+		private boolean complex, simpleContent, elementQualified, attributeQualified;
+		/**
+		 * The base of the restriction or extension
+		 */
+		private QName base;
+		private List<ElementDeclaration> children = new ArrayList<ElementDeclaration>();
+		private List<ChoiceDeclaration> choices = new ArrayList<ChoiceDeclaration>();
+		private List<String[]> facets = new ArrayList<String[]>();
+	}
+	
+	private static class ChoiceDeclaration {
+		private List<ElementDeclaration> options = new ArrayList<ElementDeclaration>();
+		private Integer minOccurs, maxOccurs;
+	}
+	
+	private static class ElementDeclaration {
+		private String namespace, name;
+		private boolean attribute, nillable;
+		private QName type, reference;
+		private TypeDeclaration anonymous;
+		private Integer minOccurs, maxOccurs;
+	}
+}
@@ -0,0 +1,195 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.w3c.dom.Document;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.definition.xsd.XSDDefinitionMarshaller.Particle;
+
+/**
+ * The precompiled form of a complex type: the particles, names, attributes and facets are resolved once and can be replayed for every schema the type is written to
+ * The prefixes and the definition of referenced types depend on the schema that is being written so they are still resolved during replay
+ * Note that the plan is a snapshot, if the type (or the elements in it) change, the plan has to be invalidated
+ */
+class XSDEmissionPlan {
+	
+	private ComplexType type;
+	private Map<String, String> attributes;
+	private SimpleType<?> valueType;
+	private String valueTypeName;
+	private ComplexType superType;
+	private List<ParticlePlan> particles;
+	
+	private XSDEmissionPlan() {
+		// use compile()
+	}
+	
+	/**
+	 * The document is only used to create detached elements to run the attribute logic on, nothing is added to it
+	 */
+	static XSDEmissionPlan compile(XSDDefinitionMarshaller marshaller, Document scratch, ComplexType type) {
+		XSDEmissionPlan plan = new XSDEmissionPlan();
+		plan.type = type;
+		plan.attributes = new TreeMap<String, String>();
+		marshaller.writeAttributes(scratch, plan.attributes, marshaller.getComplexTypeAttributes(type));
+		if (type instanceof SimpleType) {
+			plan.valueType = (SimpleType<?>) type.get(ComplexType.SIMPLE_TYPE_VALUE).getType();
+			plan.valueTypeName = plan.valueType.getName(type.getProperties());
+		}
+		if (marshaller.isUseExtension() && type.getSuperType() instanceof ComplexType) {
+			plan.superType = (ComplexType) type.getSuperType();
+		}
+		List<ParticlePlan> particles = new ArrayList<ParticlePlan>();
+		for (Particle particle : marshaller.getParticles(type)) {
+			Map<String, String> choiceAttributes = null;
+			if (particle.getChoice() != null) {
+				choiceAttributes = new TreeMap<String, String>();
+				marshaller.writeAttributes(scratch, choiceAttributes, particle.getChoice().getProperties());
+			}
+			List<ElementPlan> elements = new ArrayList<ElementPlan>();
+			for (be.nabu.libs.types.api.Element<?> element : particle.getElements()) {
+				elements.add(ElementPlan.compile(marshaller, scratch, element));
+			}
+			particles.add(new ParticlePlan(choiceAttributes, elements));
+		}
+		plan.particles = Collections.unmodifiableList(particles);
+		return plan;
+	}
+	
+	public ComplexType getType() {
+		return type;
+	}
+	/**
+	 * The attributes of the complexType element, the name is not included as it is only set on standalone types
+	 */
+	public Map<String, String> getAttributes() {
+		return attributes;
+	}
+	/**
+	 * The type of the simple content (if any)
+	 */
+	public SimpleType<?> getValueType() {
+		return valueType;
+	}
+	public String getValueTypeName() {
+		return valueTypeName;
+	}
+	/**
+	 * The super type that has to be defined, this is only set when extensions are used
+	 */
+	public ComplexType getSuperType() {
+		return superType;
+	}
+	public List<ParticlePlan> getParticles() {
+		return particles;
+	}
+
+	/**
+	 * A single element or a choice between several elements
+	 */
+	static class ParticlePlan {
+		private Map<String, String> choiceAttributes;
+		private List<ElementPlan> elements;
+		
+		ParticlePlan(Map<String, String> choiceAttributes, List<ElementPlan> elements) {
+			this.choiceAttributes = choiceAttributes;
+			this.elements = Collections.unmodifiableList(elements);
+		}
+		
+		public boolean isChoice() {
+			return choiceAttributes != null;
+		}
+		public Map<String, String> getChoiceAttributes() {
+			return choiceAttributes;
+		}
+		public List<ElementPlan> getElements() {
+			return elements;
+		}
+	}
+	
+	static class ElementPlan {
+		private be.nabu.libs.types.api.Element<?> element;
+		private boolean attribute;
+		private Map<String, String> attributes;
+		private List<String[]> facets;
+		private String typeName;
+		
+		static ElementPlan compile(XSDDefinitionMarshaller marshaller, Document scratch, be.nabu.libs.types.api.Element<?> element) {
+			ElementPlan plan = new ElementPlan();
+			plan.element = element;
+			plan.attribute = marshaller.isAttribute(element);
+			plan.attributes = new TreeMap<String, String>();
+			marshaller.writeAttributes(scratch, plan.attributes, marshaller.getElementAttributes(element, plan.attribute));
+			if (plan.attribute) {
+				plan.attributes.put("name", marshaller.getAttributeName(element));
+				if (marshaller.isOptional(element)) {
+					plan.attributes.put("use", "optional");
+				}
+			}
+			if (!plan.attributes.containsKey("name")) {
+				plan.attributes.put("name", marshaller.getElementName(element));
+			}
+			Type type = element.getType();
+			if (type.getName() != null) {
+				Value<?>[] restrictions = marshaller.getRestrictions(element);
+				// a restricted built-in type is written as an anonymous simple type
+				if (type instanceof SimpleType && XSDDefinitionMarshaller.NAMESPACE.equals(type.getNamespace()) && restrictions.length > 0) {
+					plan.facets = Collections.unmodifiableList(marshaller.getFacets(restrictions));
+				}
+				// without a namespace, the name depends on the default namespace of the context
+				else if (type.getNamespace() != null && !type.getNamespace().trim().isEmpty()) {
+					plan.typeName = marshaller.getTypeName(type, type.getNamespace(), element.getProperties());
+				}
+			}
+			plan.attributes = Collections.unmodifiableMap(plan.attributes);
+			return plan;
+		}
+		
+		public be.nabu.libs.types.api.Element<?> getElement() {
+			return element;
+		}
+		public boolean isAttribute() {
+			return attribute;
+		}
+		public Map<String, String> getAttributes() {
+			return attributes;
+		}
+		/**
+		 * The facets of the anonymous simple type if the element restricts a built-in type, null otherwise
+		 */
+		public List<String[]> getFacets() {
+			return facets;
+		}
+		/**
+		 * The name of the referenced type if it could be resolved up front, null otherwise
+		 */
+		public String getTypeName() {
+			return typeName;
+		}
+	}
+}
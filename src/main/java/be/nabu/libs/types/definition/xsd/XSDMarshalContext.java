@@ -0,0 +1,461 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.TypeRegistryImpl;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Type;
+
+/**
+ * The state of a single marshalling run, this allows one (configured) marshaller to be used by multiple threads at once
+ * A context itself is not thread safe
+ */
+public class XSDMarshalContext {
+	
+	/**
+	 * used to keep track of which types were already marshalled
+	 */
+	private TypeRegistryImpl registry;
+	
+	/**
+	 * You can either show the entire type in one namespace
+	 * Or you can reference other namespaces where necessary
+	 * Now suppose you reference a complex type from another namespace,
+	 * you can't just refer the user to a scheme detailing everything in that namespace as this might leak information
+	 * We need attachments that are specifically built to support this xsd
+	 */
+	private Map<String, Document> attachments = new LinkedHashMap<String, Document>();
+	
+	/**
+	 * The namespace of this schema
+	 */
+	private String namespace;
+	
+	/**
+	 * The root schema
+	 */
+	private Document schema;
+	
+	private Boolean isElementQualified, isAttributeQualified;
+	
+	/**
+	 * The prefixes and imports of each schema document so we don't have to scan the document for them
+	 */
+	private Map<Document, SchemaIndex> indexes = new IdentityHashMap<Document, SchemaIndex>();
+	
+	/**
+	 * The top level declarations (by kind, namespace and name) so they can be replaced when a type is updated
+	 */
+	private Map<String, Element> declarations = new HashMap<String, Element>();
+	
+	/**
+	 * The documents that were modified since tracking was started
+	 */
+	private Set<Document> modified;
+	
+	/**
+	 * Whether multiple roots share this context, in that case all named types are written to attachments
+	 */
+	private boolean shared;
+	
+	/**
+	 * The namespace of the first root, in a batch types without a namespace stay in there so they are only defined once
+	 */
+	private String defaultNamespace;
+	private boolean defaultNamespaceSet;
+	
+	/**
+	 * Overrides the attachment provider of the marshaller when resolving schema locations
+	 */
+	private SchemaLocationResolver locationResolver;
+	
+	/**
+	 * Whether the attachments are only built when they are requested
+	 */
+	private boolean lazy;
+	
+	/**
+	 * A detached context builds a single attachment, every named type it encounters is only referenced (including those of the root namespace)
+	 */
+	private boolean detached;
+	
+	/**
+	 * The namespace of the attachment that a detached context builds
+	 */
+	private String attachmentNamespace;
+	
+	/**
+	 * The types of our own namespace that are reached through another namespace, keyed on the reference that leads there (see TypeDiscovery)
+	 */
+	private Map<Integer, List<Type>> detours;
+	
+	/**
+	 * The amount of references to other namespaces that were written so far
+	 */
+	private int references;
+	
+	/**
+	 * The anonymous types that were written to each document, used to deduplicate them
+	 */
+	private Map<Document, AnonymousTypes> anonymousTypes = new IdentityHashMap<Document, AnonymousTypes>();
+	
+	private ComplexType rootType;
+	private Value<?>[] rootValues;
+	
+	/**
+	 * The pending steps of the current walk over the type graph, nested types are written from here instead of recursively
+	 */
+	private Deque<Runnable> tasks = new ArrayDeque<Runnable>();
+	
+	/**
+	 * The anonymous complex types that are being written (their children are not finished yet), a type that is encountered again while it is open is recursive
+	 */
+	private Map<ComplexType, Element> openTypes = new IdentityHashMap<ComplexType, Element>();
+	
+	XSDMarshalContext(Boolean isElementQualified, Boolean isAttributeQualified) {
+		this.isElementQualified = isElementQualified;
+		this.isAttributeQualified = isAttributeQualified;
+		this.registry = new TypeRegistryImpl();
+		this.registry.setUseTypeIds(true);
+	}
+	
+	TypeRegistryImpl getRegistry() {
+		return registry;
+	}
+
+	public Map<String, Document> getAttachments() {
+		return attachments;
+	}
+
+	public String getNamespace() {
+		return namespace;
+	}
+	void setNamespace(String namespace) {
+		this.namespace = namespace;
+		if (!defaultNamespaceSet) {
+			defaultNamespace = namespace;
+			defaultNamespaceSet = true;
+		}
+	}
+	
+	String getDefaultNamespace() {
+		return shared ? defaultNamespace : namespace;
+	}
+	
+	public SchemaLocationResolver getLocationResolver() {
+		return locationResolver;
+	}
+	/**
+	 * Use this when the attachments do not end up where the attachment provider of the marshaller puts them (e.g. in a zip bundle), the resolver can be called from multiple threads in parallel mode
+	 */
+	public void setLocationResolver(SchemaLocationResolver locationResolver) {
+		this.locationResolver = locationResolver;
+	}
+	
+	public boolean isLazy() {
+		return lazy;
+	}
+	void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+	
+	boolean isDetached() {
+		return detached;
+	}
+	
+	/**
+	 * The namespace whose types are written by this context, all the others are only referenced in lazy mode
+	 */
+	boolean isOwnNamespace(String namespace) {
+		if (detached) {
+			return attachmentNamespace == null ? namespace == null : attachmentNamespace.equals(namespace);
+		}
+		return isRootNamespace(namespace);
+	}
+	
+	void setDetours(Map<Integer, List<Type>> detours) {
+		this.detours = detours;
+		this.references = 0;
+	}
+	
+	/**
+	 * Registers a reference to another namespace, this returns the types that have to be defined right after it (if any)
+	 */
+	List<Type> nextReference() {
+		int reference = references++;
+		return detours == null ? null : detours.get(reference);
+	}
+	
+	/**
+	 * Creates a detached context with the same settings, it can build the attachment of the namespace on another thread
+	 */
+	XSDMarshalContext fork(String attachmentNamespace) {
+		XSDMarshalContext fork = new XSDMarshalContext(isElementQualified, isAttributeQualified);
+		fork.namespace = namespace;
+		fork.defaultNamespace = defaultNamespace;
+		fork.defaultNamespaceSet = defaultNamespaceSet;
+		fork.shared = shared;
+		fork.locationResolver = locationResolver;
+		fork.lazy = true;
+		fork.detached = true;
+		fork.attachmentNamespace = attachmentNamespace;
+		return fork;
+	}
+	
+	/**
+	 * Takes over the state of the attachments that were built by a fork so this context can be used to update them
+	 */
+	void merge(XSDMarshalContext fork) {
+		indexes.putAll(fork.indexes);
+		declarations.putAll(fork.declarations);
+		anonymousTypes.putAll(fork.anonymousTypes);
+	}
+	
+	public boolean isShared() {
+		return shared;
+	}
+	void setShared(boolean shared) {
+		this.shared = shared;
+	}
+
+	public Document getSchema() {
+		return schema;
+	}
+	void setSchema(Document schema) {
+		this.schema = schema;
+	}
+
+	public Boolean getIsElementQualified() {
+		return isElementQualified;
+	}
+	void setIsElementQualified(Boolean isElementQualified) {
+		this.isElementQualified = isElementQualified;
+	}
+
+	public Boolean getIsAttributeQualified() {
+		return isAttributeQualified;
+	}
+	void setIsAttributeQualified(Boolean isAttributeQualified) {
+		this.isAttributeQualified = isAttributeQualified;
+	}
+	
+	boolean isRootNamespace(String namespace) {
+		return (this.namespace == null && namespace == null) || (this.namespace != null && this.namespace.equals(namespace));
+	}
+	
+	Element getDeclaration(String key) {
+		return declarations.get(key);
+	}
+	void setDeclaration(String key, Element declaration) {
+		declarations.put(key, declaration);
+	}
+	
+	ComplexType getRootType() {
+		return rootType;
+	}
+	Value<?>[] getRootValues() {
+		return rootValues;
+	}
+	void setRoot(ComplexType rootType, Value<?>...rootValues) {
+		this.rootType = rootType;
+		this.rootValues = rootValues;
+	}
+	
+	void startTracking() {
+		modified = Collections.newSetFromMap(new IdentityHashMap<Document, Boolean>());
+	}
+	Set<Document> stopTracking() {
+		Set<Document> result = modified;
+		modified = null;
+		return result;
+	}
+	void markModified(Document document) {
+		if (modified != null) {
+			modified.add(document);
+		}
+	}
+	
+	void schedule(Runnable task) {
+		tasks.push(task);
+	}
+	Runnable nextTask() {
+		return tasks.poll();
+	}
+	void clearTasks() {
+		tasks.clear();
+		openTypes.clear();
+	}
+	
+	Element getOpenType(ComplexType type) {
+		return openTypes.get(type);
+	}
+	void openType(ComplexType type, Element complexTypeElement) {
+		openTypes.put(type, complexTypeElement);
+	}
+	void closeType(ComplexType type) {
+		openTypes.remove(type);
+	}
+	
+	AnonymousTypes getAnonymousTypes(Document document) {
+		AnonymousTypes types = anonymousTypes.get(document);
+		if (types == null) {
+			types = new AnonymousTypes();
+			anonymousTypes.put(document, types);
+		}
+		return types;
+	}
+	
+	SchemaIndex getSchemaIndex(Document document) {
+		return indexes.get(document);
+	}
+	void setSchemaIndex(Document document, SchemaIndex index) {
+		indexes.put(document, index);
+	}
+	
+	static class SchemaIndex {
+		private Map<String, String> prefixes = new HashMap<String, String>();
+		private Set<String> imports = new HashSet<String>();
+		/**
+		 * The highest tns[0-9]+ prefix in use
+		 */
+		private int highestCount = -1;
+		/**
+		 * The target namespace of the document, only known for the schemas we create
+		 */
+		private String namespace;
+		
+		SchemaIndex(String namespace) {
+			this.namespace = namespace;
+			if (namespace != null) {
+				prefixes.put(namespace, "tns");
+			}
+		}
+		
+		String getNamespace() {
+			return namespace;
+		}
+		
+		String getPrefix(String namespace) {
+			return prefixes.get(namespace);
+		}
+		
+		void addPrefix(String namespace, String prefix) {
+			if (!prefixes.containsKey(namespace)) {
+				prefixes.put(namespace, prefix);
+			}
+			if (prefix.length() > 3 && prefix.startsWith("tns")) {
+				int counter = 0;
+				for (int i = 3; i < prefix.length(); i++) {
+					char character = prefix.charAt(i);
+					if (character < '0' || character > '9') {
+						return;
+					}
+					counter = counter * 10 + (character - '0');
+				}
+				if (counter > highestCount) {
+					highestCount = counter;
+				}
+			}
+		}
+		
+		String newPrefix(String namespace) {
+			String prefix = "tns" + ++highestCount;
+			prefixes.put(namespace, prefix);
+			return prefix;
+		}
+		
+		/**
+		 * Returns true if the namespace was not imported yet
+		 */
+		boolean addImport(String namespace) {
+			return imports.add(namespace);
+		}
+	}
+	
+	static class AnonymousType {
+		private int id;
+		private Element element, inline;
+		/**
+		 * The (prefixed) name once the type is moved to the schema
+		 */
+		private String name;
+		
+		AnonymousType(int id, Element element, Element inline) {
+			this.id = id;
+			this.element = element;
+			this.inline = inline;
+		}
+		int getId() {
+			return id;
+		}
+		Element getElement() {
+			return element;
+		}
+		Element getInline() {
+			return inline;
+		}
+		String getName() {
+			return name;
+		}
+	}
+	
+	static class AnonymousTypes {
+		private Map<String, AnonymousType> fingerprints = new HashMap<String, AnonymousType>();
+		private Map<Node, AnonymousType> inlines = new IdentityHashMap<Node, AnonymousType>();
+		private Map<String, AnonymousType> names = new HashMap<String, AnonymousType>();
+		private int counter;
+		
+		AnonymousType get(String fingerprint) {
+			return fingerprints.get(fingerprint);
+		}
+		AnonymousType getByInline(Node inline) {
+			return inlines.get(inline);
+		}
+		AnonymousType getByName(String name) {
+			return names.get(name);
+		}
+		void add(String fingerprint, Element element, Element inline) {
+			AnonymousType type = new AnonymousType(fingerprints.size(), element, inline);
+			fingerprints.put(fingerprint, type);
+			inlines.put(inline, type);
+		}
+		void setName(AnonymousType type, String name) {
+			type.name = name;
+			names.put(name, type);
+		}
+		int nextCounter() {
+			return ++counter;
+		}
+	}
+}
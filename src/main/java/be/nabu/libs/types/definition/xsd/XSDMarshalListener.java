@@ -0,0 +1,57 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+
+/**
+ * Receives the events of the marshaller, this can be used to collect metrics or trace slow schemas
+ * Attachments may be written concurrently (see the attachment executor) so implementations should be thread safe
+ */
+public interface XSDMarshalListener {
+	
+	public void complexTypeWritten(ComplexType type);
+	
+	public void simpleTypeWritten(SimpleType<?> type);
+	
+	public void elementWritten(Element<?> element, boolean attribute);
+	
+	/**
+	 * A named element or type was requested, existing is true if it was already defined in this run
+	 */
+	public void defined(String namespace, String name, boolean existing);
+	
+	public void attachmentCreated(String namespace);
+	
+	public void namespacePrefixResolved(String namespace, boolean created);
+	
+	public void schemaImported(String namespace, boolean created);
+	
+	/**
+	 * The time it took to build the documents for the given root type
+	 */
+	public void built(Type type, long nanos);
+	
+	/**
+	 * A schema was written to its output, attachment is false for the root schema
+	 */
+	public void serialized(String namespace, boolean attachment, long bytes, long nanos);
+}
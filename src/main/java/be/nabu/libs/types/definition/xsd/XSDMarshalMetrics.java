@@ -0,0 +1,202 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+
+/**
+ * Keeps counters and timers for everything the marshaller reports, the values are cumulative until reset() is called
+ * This can be shared by multiple marshallers
+ */
+public class XSDMarshalMetrics implements XSDMarshalListener {
+
+	private AtomicLong complexTypes = new AtomicLong(),
+		simpleTypes = new AtomicLong(),
+		elements = new AtomicLong(),
+		attributes = new AtomicLong(),
+		registryHits = new AtomicLong(),
+		definitions = new AtomicLong(),
+		attachments = new AtomicLong(),
+		prefixLookups = new AtomicLong(),
+		prefixesCreated = new AtomicLong(),
+		importLookups = new AtomicLong(),
+		importsCreated = new AtomicLong(),
+		builds = new AtomicLong(),
+		buildTime = new AtomicLong(),
+		serializations = new AtomicLong(),
+		serializationTime = new AtomicLong(),
+		bytesWritten = new AtomicLong();
+	
+	/**
+	 * The bytes written per attachment namespace, an attachment without a namespace is registered under the empty string (concurrent maps don't allow null keys)
+	 */
+	private ConcurrentMap<String, AtomicLong> attachmentBytes = new ConcurrentHashMap<String, AtomicLong>();
+	
+	@Override
+	public void complexTypeWritten(ComplexType type) {
+		complexTypes.incrementAndGet();
+	}
+
+	@Override
+	public void simpleTypeWritten(SimpleType<?> type) {
+		simpleTypes.incrementAndGet();
+	}
+
+	@Override
+	public void elementWritten(Element<?> element, boolean attribute) {
+		if (attribute) {
+			attributes.incrementAndGet();
+		}
+		else {
+			elements.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void defined(String namespace, String name, boolean existing) {
+		if (existing) {
+			registryHits.incrementAndGet();
+		}
+		else {
+			definitions.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void attachmentCreated(String namespace) {
+		attachments.incrementAndGet();
+	}
+
+	@Override
+	public void namespacePrefixResolved(String namespace, boolean created) {
+		prefixLookups.incrementAndGet();
+		if (created) {
+			prefixesCreated.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void schemaImported(String namespace, boolean created) {
+		importLookups.incrementAndGet();
+		if (created) {
+			importsCreated.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void built(Type type, long nanos) {
+		builds.incrementAndGet();
+		buildTime.addAndGet(nanos);
+	}
+
+	@Override
+	public void serialized(String namespace, boolean attachment, long bytes, long nanos) {
+		serializations.incrementAndGet();
+		serializationTime.addAndGet(nanos);
+		bytesWritten.addAndGet(bytes);
+		if (attachment) {
+			String key = namespace == null ? "" : namespace;
+			AtomicLong counter = attachmentBytes.get(key);
+			if (counter == null) {
+				attachmentBytes.putIfAbsent(key, new AtomicLong());
+				counter = attachmentBytes.get(key);
+			}
+			counter.addAndGet(bytes);
+		}
+	}
+	
+	public void reset() {
+		for (AtomicLong counter : new AtomicLong[] { complexTypes, simpleTypes, elements, attributes, registryHits, definitions, attachments, prefixLookups, prefixesCreated, importLookups, importsCreated, builds, buildTime, serializations, serializationTime, bytesWritten }) {
+			counter.set(0);
+		}
+		attachmentBytes.clear();
+	}
+
+	public long getComplexTypes() {
+		return complexTypes.get();
+	}
+	public long getSimpleTypes() {
+		return simpleTypes.get();
+	}
+	public long getElements() {
+		return elements.get();
+	}
+	public long getAttributes() {
+		return attributes.get();
+	}
+	public long getRegistryHits() {
+		return registryHits.get();
+	}
+	public long getDefinitions() {
+		return definitions.get();
+	}
+	public long getAttachments() {
+		return attachments.get();
+	}
+	public long getPrefixLookups() {
+		return prefixLookups.get();
+	}
+	public long getPrefixesCreated() {
+		return prefixesCreated.get();
+	}
+	public long getImportLookups() {
+		return importLookups.get();
+	}
+	public long getImportsCreated() {
+		return importsCreated.get();
+	}
+	public long getBuilds() {
+		return builds.get();
+	}
+	public long getBuildTime() {
+		return buildTime.get();
+	}
+	public long getSerializations() {
+		return serializations.get();
+	}
+	public long getSerializationTime() {
+		return serializationTime.get();
+	}
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+	public Map<String, Long> getAttachmentBytes() {
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : attachmentBytes.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+		return result;
+	}
+	
+	@Override
+	public String toString() {
+		return "complexTypes=" + getComplexTypes() + ", simpleTypes=" + getSimpleTypes() + ", elements=" + getElements() + ", attributes=" + getAttributes()
+			+ ", registryHits=" + getRegistryHits() + ", definitions=" + getDefinitions() + ", attachments=" + getAttachments()
+			+ ", prefixLookups=" + getPrefixLookups() + ", importLookups=" + getImportLookups()
+			+ ", buildTime=" + getBuildTime() / 1000000 + "ms, serializationTime=" + getSerializationTime() / 1000000 + "ms, bytesWritten=" + getBytesWritten();
+	}
+}
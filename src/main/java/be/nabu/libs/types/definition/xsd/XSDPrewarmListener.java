@@ -0,0 +1,34 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+/**
+ * Receives the progress of a prewarmer, the methods are called from the background threads so implementations should be thread safe
+ */
+public interface XSDPrewarmListener {
+	
+	/**
+	 * The schema for the type is available, completed and total are the counts since the prewarmer was created
+	 */
+	public void warmed(String id, long nanos, int completed, int total);
+	
+	/**
+	 * Generating the schema failed, it will be generated on the first request instead
+	 */
+	public void failed(String id, Exception exception, int completed, int total);
+}
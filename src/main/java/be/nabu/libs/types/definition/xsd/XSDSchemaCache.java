@@ -0,0 +1,250 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.validation.Schema;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.definition.xsd.XSDDefinitionMarshaller.Particle;
+
+/**
+ * Caches the generated schemas of defined types, the key consists of the type id and the configuration of the marshaller at the time of the request
+ * The least recently used entries are evicted once the maximum size is reached
+ * Each entry knows which defined types it contains so it is invalidated when any of them changes, not just the root
+ */
+public class XSDSchemaCache {
+	
+	private XSDDefinitionMarshaller marshaller;
+	
+	private Map<Key, Entry> schemas;
+	
+	/**
+	 * Incremented by every invalidation, a schema that was generated while an invalidation happened is not cached as it may be based on the old definition
+	 */
+	private long version;
+	
+	/**
+	 * Optional persistent store, schemas that are not in memory are loaded from there before they are generated
+	 */
+	private XSDSchemaStore store;
+	
+	public XSDSchemaCache(XSDDefinitionMarshaller marshaller, final int maxSize) {
+		this.marshaller = marshaller;
+		this.schemas = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+	
+	public MarshalledSchema get(ComplexType type) throws IOException {
+		// only defined types have a stable identity
+		if (!(type instanceof DefinedType)) {
+			return generate(type);
+		}
+		Key key = new Key(((DefinedType) type).getId(), marshaller);
+		Entry entry;
+		long version;
+		synchronized(schemas) {
+			entry = schemas.get(key);
+			version = this.version;
+		}
+		if (entry == null || !entry.schema.isValidFor(marshaller.getAttachmentProvider())) {
+			// generate outside of the lock, at worst the same schema is generated twice
+			entry = new Entry(generate(type), getDependencies(type));
+			synchronized(schemas) {
+				// if something was invalidated in the meantime, the schema may contain the old definition so it is only used for this request
+				if (version == this.version) {
+					schemas.put(key, entry);
+				}
+			}
+		}
+		return entry.schema;
+	}
+	
+	/**
+	 * The compiled schema is cached along with the generated one so it is invalidated (and evicted) together with it
+	 */
+	public Schema getValidationSchema(ComplexType type) throws IOException {
+		return get(type).getValidationSchema();
+	}
+	
+	public void marshal(OutputStream output, ComplexType type) throws IOException {
+		get(type).write(output, marshaller.getAttachmentProvider(), marshaller.isCompressed());
+	}
+	
+	/**
+	 * Should be called when a type definition is reloaded, removes the schemas (for all configurations) of the type and of all the types that contain it
+	 */
+	public void invalidate(String id) {
+		synchronized(schemas) {
+			version++;
+			Iterator<Map.Entry<Key, Entry>> iterator = schemas.entrySet().iterator();
+			while (iterator.hasNext()) {
+				Map.Entry<Key, Entry> next = iterator.next();
+				if (next.getKey().id.equals(id) || next.getValue().dependencies.contains(id)) {
+					iterator.remove();
+				}
+			}
+		}
+	}
+	
+	public void invalidateAll() {
+		synchronized(schemas) {
+			version++;
+			schemas.clear();
+		}
+	}
+	
+	private MarshalledSchema generate(ComplexType type) throws IOException {
+		return store == null ? marshaller.marshalToBytes(type) : store.get(type);
+	}
+	
+	/**
+	 * The ids of all the defined types that are reachable from the type, super types are included even if they are not extended as their elements are copied
+	 * This only walks the graph, it is a lot cheaper than the generation it accompanies
+	 */
+	private Set<String> getDependencies(ComplexType type) {
+		Set<String> dependencies = new HashSet<String>();
+		Set<Type> visited = Collections.newSetFromMap(new IdentityHashMap<Type, Boolean>());
+		Deque<Type> stack = new ArrayDeque<Type>();
+		stack.push(type);
+		while (!stack.isEmpty()) {
+			Type next = stack.pop();
+			if (!visited.add(next)) {
+				continue;
+			}
+			if (next instanceof DefinedType) {
+				dependencies.add(((DefinedType) next).getId());
+			}
+			if (next.getSuperType() != null) {
+				stack.push(next.getSuperType());
+			}
+			if (next instanceof ComplexType) {
+				for (Particle particle : marshaller.getParticles((ComplexType) next)) {
+					for (be.nabu.libs.types.api.Element<?> element : particle.getElements()) {
+						stack.push(element.getType());
+					}
+				}
+			}
+		}
+		return dependencies;
+	}
+	
+	public XSDSchemaStore getStore() {
+		return store;
+	}
+
+	public void setStore(XSDSchemaStore store) {
+		this.store = store;
+	}
+	
+	private static class Entry {
+		private MarshalledSchema schema;
+		private Set<String> dependencies;
+		
+		public Entry(MarshalledSchema schema, Set<String> dependencies) {
+			this.schema = schema;
+			this.dependencies = dependencies;
+		}
+	}
+	
+	/**
+	 * The string form describes the configuration, it is part of the fingerprint in the schema store
+	 */
+	static class Key {
+		private String id;
+		private boolean useExtension, forceAnonymousComplexTypes, hidePrivatelyScoped, includeSchemaLocation, deduplicateAnonymousTypes, canonical, compact, splitRoot, omitXMLDeclaration;
+		private Boolean isElementQualified, isAttributeQualified;
+		
+		public Key(String id, XSDDefinitionMarshaller marshaller) {
+			this.id = id;
+			this.useExtension = marshaller.isUseExtension();
+			this.forceAnonymousComplexTypes = marshaller.isForceAnonymousComplexTypes();
+			this.hidePrivatelyScoped = marshaller.isHidePrivatelyScoped();
+			this.includeSchemaLocation = marshaller.isIncludeSchemaLocation();
+			this.deduplicateAnonymousTypes = marshaller.isDeduplicateAnonymousTypes();
+			this.canonical = marshaller.isCanonical();
+			this.compact = marshaller.isCompact();
+			this.splitRoot = marshaller.isSplitRoot();
+			this.omitXMLDeclaration = marshaller.isOmitXMLDeclaration();
+			this.isElementQualified = marshaller.getIsElementQualified();
+			this.isAttributeQualified = marshaller.getIsAttributeQualified();
+		}
+
+		@Override
+		public String toString() {
+			return id + " useExtension=" + useExtension + " forceAnonymousComplexTypes=" + forceAnonymousComplexTypes + " hidePrivatelyScoped=" + hidePrivatelyScoped
+				+ " includeSchemaLocation=" + includeSchemaLocation + " deduplicateAnonymousTypes=" + deduplicateAnonymousTypes + " canonical=" + canonical
+				+ " compact=" + compact + " splitRoot=" + splitRoot + " omitXMLDeclaration=" + omitXMLDeclaration + " isElementQualified=" + isElementQualified + " isAttributeQualified=" + isAttributeQualified;
+		}
+
+		@Override
+		public int hashCode() {
+			int result = id.hashCode();
+			result = 31 * result + (useExtension ? 1 : 0);
+			result = 31 * result + (forceAnonymousComplexTypes ? 1 : 0);
+			result = 31 * result + (hidePrivatelyScoped ? 1 : 0);
+			result = 31 * result + (includeSchemaLocation ? 1 : 0);
+			result = 31 * result + (deduplicateAnonymousTypes ? 1 : 0);
+			result = 31 * result + (canonical ? 1 : 0);
+			result = 31 * result + (compact ? 1 : 0);
+			result = 31 * result + (splitRoot ? 1 : 0);
+			result = 31 * result + (omitXMLDeclaration ? 1 : 0);
+			result = 31 * result + (isElementQualified == null ? 0 : isElementQualified.hashCode());
+			result = 31 * result + (isAttributeQualified == null ? 0 : isAttributeQualified.hashCode());
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (!(object instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) object;
+			return id.equals(other.id)
+				&& useExtension == other.useExtension
+				&& forceAnonymousComplexTypes == other.forceAnonymousComplexTypes
+				&& hidePrivatelyScoped == other.hidePrivatelyScoped
+				&& includeSchemaLocation == other.includeSchemaLocation
+				&& deduplicateAnonymousTypes == other.deduplicateAnonymousTypes
+				&& canonical == other.canonical
+				&& compact == other.compact
+				&& splitRoot == other.splitRoot
+				&& omitXMLDeclaration == other.omitXMLDeclaration
+				&& (isElementQualified == null ? other.isElementQualified == null : isElementQualified.equals(other.isElementQualified))
+				&& (isAttributeQualified == null ? other.isAttributeQualified == null : isAttributeQualified.equals(other.isAttributeQualified));
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.TypeRegistry;
+
+/**
+ * Generates the schemas of defined types in the background so they are in the cache before they are requested
+ * The work is done by a fixed amount of low priority daemon threads, the types with the highest priority are generated first
+ * A type that is already queued is not queued again
+ */
+public class XSDSchemaPrewarmer {
+	
+	private XSDSchemaCache cache;
+	private ThreadPoolExecutor executor;
+	private XSDPrewarmListener listener;
+	
+	/**
+	 * The ids that are queued or being generated
+	 */
+	private Set<String> pending = new HashSet<String>();
+	private AtomicInteger completed = new AtomicInteger(), total = new AtomicInteger();
+	/**
+	 * Keeps the order of types with the same priority
+	 */
+	private AtomicLong sequence = new AtomicLong();
+	
+	public XSDSchemaPrewarmer(XSDSchemaCache cache, int threads) {
+		this.cache = cache;
+		final AtomicInteger counter = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "xsd-prewarmer-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				// request threads go first
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+		// don't keep idle threads around once everything is warm
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+	
+	public void prewarm(Collection<? extends DefinedType> types) {
+		prewarm(types, 0);
+	}
+	
+	public void prewarm(Collection<? extends DefinedType> types, int priority) {
+		for (DefinedType type : types) {
+			if (type instanceof ComplexType) {
+				prewarm((ComplexType) type, priority);
+			}
+		}
+	}
+	
+	/**
+	 * Queues all the complex types in the registry that have an id
+	 */
+	public void prewarm(TypeRegistry registry, int priority) {
+		for (String namespace : registry.getNamespaces()) {
+			for (ComplexType type : registry.getComplexTypes(namespace)) {
+				if (type instanceof DefinedType) {
+					prewarm(type, priority);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Types with a higher priority are generated first, returns false if the type is not a defined type, it is already queued or the prewarmer is shut down
+	 */
+	public boolean prewarm(ComplexType type, int priority) {
+		if (!(type instanceof DefinedType)) {
+			return false;
+		}
+		String id = ((DefinedType) type).getId();
+		synchronized(pending) {
+			if (!pending.add(id)) {
+				return false;
+			}
+		}
+		total.incrementAndGet();
+		try {
+			// execute() hands a task straight to a new thread while there are less than the core threads, that would skip the priority queue
+			// the threads are started first (this is a no-op if they are running) so every task goes through the queue, they time out again once idle
+			executor.prestartAllCoreThreads();
+			executor.execute(new Task(id, type, priority, sequence.getAndIncrement()));
+		}
+		// otherwise await() would wait for a type that is never generated
+		catch (RejectedExecutionException e) {
+			total.decrementAndGet();
+			done(id);
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Waits until the queue is empty and nothing is being generated, returns false if the timeout expired first
+	 */
+	public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized(pending) {
+			while (!pending.isEmpty()) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(pending, remaining);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Stops the threads, queued types are dropped but types that are being generated are finished
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		// shutdownNow() would interrupt the running tasks, the queue is emptied instead
+		List<Runnable> dropped = new ArrayList<Runnable>();
+		executor.getQueue().drainTo(dropped);
+		for (Runnable task : dropped) {
+			total.decrementAndGet();
+			done(((Task) task).id);
+		}
+	}
+	
+	public int getCompleted() {
+		return completed.get();
+	}
+	
+	public int getTotal() {
+		return total.get();
+	}
+	
+	public XSDPrewarmListener getListener() {
+		return listener;
+	}
+
+	public void setListener(XSDPrewarmListener listener) {
+		this.listener = listener;
+	}
+
+	private void done(String id) {
+		synchronized(pending) {
+			pending.remove(id);
+			pending.notifyAll();
+		}
+	}
+	
+	/**
+	 * The queue orders the tasks so they have to be comparable, this only works because they are passed to execute() as is
+	 */
+	private class Task implements Runnable, Comparable<Task> {
+		private String id;
+		private ComplexType type;
+		private int priority;
+		private long sequence;
+		
+		Task(String id, ComplexType type, int priority, long sequence) {
+			this.id = id;
+			this.type = type;
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+		
+		@Override
+		public void run() {
+			long started = System.nanoTime();
+			try {
+				cache.get(type);
+				int count = completed.incrementAndGet();
+				if (listener != null) {
+					listener.warmed(id, System.nanoTime() - started, count, total.get());
+				}
+			}
+			catch (Exception e) {
+				int count = completed.incrementAndGet();
+				if (listener != null) {
+					listener.failed(id, e, count, total.get());
+				}
+			}
+			finally {
+				done(id);
+			}
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+		}
+	}
+}
@@ -0,0 +1,304 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.definition.xsd.XSDDefinitionMarshaller.Particle;
+
+/**
+ * Persists the generated schemas of defined types in a directory so they survive a restart
+ * Each type gets its own directory (based on the id) with an index that contains the fingerprint of the configuration and the definition
+ * A schema is only generated again if the fingerprint no longer matches, e.g. because the type or one of the types it references changed
+ * Every time a schema is stored, the root and the attachments are written to a new generation directory and the index is then atomically replaced to point to it
+ * Files are never rewritten in place so a concurrent load either sees the old or the new generation, never a partially written one
+ * The previous generation is removed once the index is swapped, a load that still wanted to read it simply misses and generates the schema
+ */
+public class XSDSchemaStore {
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String INDEX = "index.properties";
+	private static final String ROOT = "root.xsd";
+	private static final String GENERATION = "generation";
+	
+	private XSDDefinitionMarshaller marshaller;
+	private Path directory;
+	
+	public XSDSchemaStore(XSDDefinitionMarshaller marshaller, Path directory) {
+		this.marshaller = marshaller;
+		this.directory = directory;
+	}
+	
+	/**
+	 * Returns the stored schema if it is still valid, otherwise it is generated and stored
+	 */
+	public MarshalledSchema get(ComplexType type) throws IOException {
+		// only defined types have a stable identity
+		if (!(type instanceof DefinedType)) {
+			return marshaller.marshalToBytes(type);
+		}
+		String id = ((DefinedType) type).getId();
+		String fingerprint = fingerprint(id, type);
+		MarshalledSchema schema = load(id, fingerprint);
+		if (schema == null || !schema.isValidFor(marshaller.getAttachmentProvider())) {
+			schema = marshaller.marshalToBytes(type);
+			store(id, fingerprint, schema);
+		}
+		return schema;
+	}
+	
+	/**
+	 * Should be called when a type definition is removed, changed types are detected by their fingerprint
+	 * This is serialized with store() so it can not remove a generation that a concurrent store just put in place (or miss the one it is replacing)
+	 */
+	public synchronized void invalidate(String id) throws IOException {
+		Path target = getDirectory(id);
+		Properties index = readIndex(target);
+		Files.deleteIfExists(target.resolve(INDEX));
+		if (index != null) {
+			deleteGeneration(target, index);
+		}
+	}
+	
+	public Path getDirectory() {
+		return directory;
+	}
+	
+	private Path getDirectory(String id) {
+		return directory.resolve(XSDDefinitionMarshaller.getFileName(id));
+	}
+	
+	/**
+	 * Returns null if there is no (matching) entry for the type
+	 */
+	MarshalledSchema load(String id, String fingerprint) throws IOException {
+		Path target = getDirectory(id);
+		Properties index = readIndex(target);
+		// the id is checked as well, different ids can end up with the same directory name
+		if (index == null || !fingerprint.equals(index.getProperty("fingerprint")) || !id.equals(index.getProperty("id")) || index.getProperty(GENERATION) == null) {
+			return null;
+		}
+		Path generation = target.resolve(index.getProperty(GENERATION));
+		Map<String, byte[]> attachments = new LinkedHashMap<String, byte[]>();
+		Map<String, URI> uris = new LinkedHashMap<String, URI>();
+		Map<String, Path> files = new LinkedHashMap<String, Path>();
+		try {
+			int count = Integer.parseInt(index.getProperty("attachments", "0"));
+			for (int i = 0; i < count; i++) {
+				// a null namespace is stored as an absent property
+				String namespace = index.getProperty("attachment." + i + ".namespace");
+				String uri = index.getProperty("attachment." + i + ".uri");
+				files.put(namespace, generation.resolve(i + ".xsd"));
+				attachments.put(namespace, Files.readAllBytes(files.get(namespace)));
+				uris.put(namespace, uri == null ? null : URI.create(uri));
+			}
+			MarshalledSchema schema = new MarshalledSchema(Files.readAllBytes(generation.resolve(ROOT)), attachments, uris);
+			// the generation is never modified so the attachments can be transferred straight from it
+			schema.setFiles(files);
+			return schema;
+		}
+		// the generation was replaced after we read the index
+		catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Stores are serialized, two concurrent stores of the same type would otherwise each remove the previous generation and leave one of their own behind
+	 */
+	synchronized void store(String id, String fingerprint, MarshalledSchema schema) throws IOException {
+		Path target = getDirectory(id);
+		Files.createDirectories(target);
+		Properties previous = readIndex(target);
+		Path generation = Files.createTempDirectory(target, GENERATION);
+		Properties index = new Properties();
+		index.setProperty("id", id);
+		index.setProperty("fingerprint", fingerprint);
+		index.setProperty(GENERATION, generation.getFileName().toString());
+		write(generation.resolve(ROOT), schema.getRoot());
+		int counter = 0;
+		for (Map.Entry<String, byte[]> attachment : schema.getAttachments().entrySet()) {
+			if (attachment.getKey() != null) {
+				index.setProperty("attachment." + counter + ".namespace", attachment.getKey());
+			}
+			URI uri = schema.getURIs().get(attachment.getKey());
+			if (uri != null) {
+				index.setProperty("attachment." + counter + ".uri", uri.toString());
+			}
+			write(generation.resolve(counter + ".xsd"), attachment.getValue());
+			counter++;
+		}
+		index.setProperty("attachments", Integer.toString(counter));
+		Path temporary = Files.createTempFile(target, INDEX, ".tmp");
+		try {
+			OutputStream output = Files.newOutputStream(temporary);
+			try {
+				index.store(output, null);
+			}
+			finally {
+				output.close();
+			}
+			Files.move(temporary, target.resolve(INDEX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			deleteDirectory(generation);
+			throw e;
+		}
+		finally {
+			Files.deleteIfExists(temporary);
+		}
+		if (previous != null) {
+			deleteGeneration(target, previous);
+		}
+	}
+	
+	/**
+	 * Returns null if there is no index
+	 */
+	private static Properties readIndex(Path target) throws IOException {
+		Properties index = new Properties();
+		InputStream input;
+		try {
+			input = Files.newInputStream(target.resolve(INDEX));
+		}
+		catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			index.load(input);
+		}
+		finally {
+			input.close();
+		}
+		return index;
+	}
+	
+	private static void deleteGeneration(Path target, Properties index) throws IOException {
+		String generation = index.getProperty(GENERATION);
+		if (generation != null) {
+			deleteDirectory(target.resolve(generation));
+		}
+	}
+	
+	/**
+	 * The generations are flat so there is only one level to delete
+	 */
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (Files.isDirectory(directory)) {
+			DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+			try {
+				for (Path file : files) {
+					Files.deleteIfExists(file);
+				}
+			}
+			finally {
+				files.close();
+			}
+			Files.deleteIfExists(directory);
+		}
+	}
+	
+	/**
+	 * Each file is only written once, in a new generation
+	 */
+	private static void write(Path file, byte [] content) throws IOException {
+		Files.write(file, content, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	}
+	
+	/**
+	 * The fingerprint covers the configuration of the marshaller and everything in the type graph that ends up in the schema
+	 * This walks the graph but does not build or serialize anything so it is a lot cheaper than generating the schema
+	 */
+	String fingerprint(String id, ComplexType type) {
+		StringBuilder builder = new StringBuilder();
+		builder.append(new XSDSchemaCache.Key(id, marshaller)).append('\n');
+		Set<Type> visited = Collections.newSetFromMap(new IdentityHashMap<Type, Boolean>());
+		Deque<Type> stack = new ArrayDeque<Type>();
+		stack.push(type);
+		while (!stack.isEmpty()) {
+			Type next = stack.pop();
+			if (!visited.add(next)) {
+				continue;
+			}
+			builder.append(next instanceof ComplexType ? "complexType " : "simpleType ");
+			appendReference(builder, next);
+			appendProperties(builder, next.getProperties());
+			if (next.getSuperType() != null) {
+				builder.append(" extends ");
+				appendReference(builder, next.getSuperType());
+				stack.push(next.getSuperType());
+			}
+			builder.append('\n');
+			if (next instanceof ComplexType) {
+				for (Particle particle : marshaller.getParticles((ComplexType) next)) {
+					if (particle.getChoice() != null) {
+						builder.append("\tchoice");
+						appendProperties(builder, particle.getChoice().getProperties());
+						builder.append('\n');
+					}
+					for (be.nabu.libs.types.api.Element<?> element : particle.getElements()) {
+						builder.append("\t").append(element.getName()).append(' ');
+						appendReference(builder, element.getType());
+						appendProperties(builder, element.getProperties());
+						builder.append('\n');
+						stack.push(element.getType());
+					}
+				}
+			}
+		}
+		return MarshalledSchema.hash(builder.toString().getBytes(UTF8));
+	}
+	
+	private static void appendReference(StringBuilder builder, Type type) {
+		// anonymous types are fingerprinted by content, the walk is deterministic so their position suffices
+		if (type.getName() == null) {
+			builder.append("anonymous");
+		}
+		else {
+			builder.append(type instanceof DefinedType ? ((DefinedType) type).getId() : type.getNamespace() + ":" + type.getName());
+		}
+	}
+	
+	private static void appendProperties(StringBuilder builder, Value<?>[] values) {
+		for (Value<?> value : values) {
+			builder.append(' ').append(value.getProperty().getName()).append('=').append(value.getValue());
+		}
+	}
+}
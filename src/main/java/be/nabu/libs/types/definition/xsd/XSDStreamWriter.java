@@ -0,0 +1,756 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.TypeRegistryImpl;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.MarshalException;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.definition.xsd.XSDDefinitionMarshaller.Particle;
+
+/**
+ * Writes the same schema as the DOM-based marshaller but streams it to the output instead of building documents first.
+ * The type graph is traversed twice: the first pass only registers the types and keeps track of the prefixes and imports each schema needs (they have to be written before anything else)
+ * The second pass writes the declarations of each schema in the order they were registered, so memory is bounded by the amount of types, not the size of the schema
+ */
+class XSDStreamWriter {
+
+	private static final String NAMESPACE = XSDDefinitionMarshaller.NAMESPACE;
+
+	private XSDDefinitionMarshaller marshaller;
+
+	private XSDMarshalListener listener;
+
+	private TypeRegistryImpl registry;
+
+	/**
+	 * The namespace of the root schema
+	 */
+	private String namespace;
+
+	private boolean elementQualified, attributeQualified;
+
+	private StreamedSchema schema;
+
+	private Map<String, StreamedSchema> attachments = new LinkedHashMap<String, StreamedSchema>();
+
+	/**
+	 * Only set during the second pass
+	 */
+	private XMLStreamWriter writer;
+
+	/**
+	 * Used to run values through the attribute logic of the marshaller
+	 */
+	private Document scratch;
+
+	/**
+	 * Start elements are only written once we know whether they have children, this allows us to write empty elements where the DOM would
+	 */
+	private String pendingName;
+	private Map<String, String> pendingAttributes;
+	private int depth;
+
+	/**
+	 * Whether anything has been written to the current document, the serializer only puts a line feed between nodes
+	 */
+	private boolean written;
+
+	/**
+	 * The declaration written by the transformer behind writeToStream(), we write it ourselves as the stax writer does not support standalone
+	 */
+	private static final String DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+	
+	/**
+	 * Looking up the factory scans the classpath, once configured it can create writers from multiple threads
+	 */
+	private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+
+	/**
+	 * The indentation of writeToStream()
+	 */
+	private static final String INDENT = "    ";
+
+	/**
+	 * The pending steps of the current declaration, deeply nested types are written from here instead of recursively
+	 */
+	private Deque<Step> tasks = new ArrayDeque<Step>();
+	
+	/**
+	 * The anonymous complex types that are being written
+	 */
+	private Set<ComplexType> openTypes = Collections.newSetFromMap(new IdentityHashMap<ComplexType, Boolean>());
+
+	private final Step closeElement = new Step() {
+		@Override
+		public void run() throws XMLStreamException {
+			end();
+		}
+	};
+
+	XSDStreamWriter(XSDDefinitionMarshaller marshaller) {
+		this.marshaller = marshaller;
+		this.listener = marshaller.getListener();
+		this.registry = new TypeRegistryImpl();
+		this.registry.setUseTypeIds(true);
+	}
+
+	void write(OutputStream output, ComplexType type, Value<?>...values) throws IOException {
+		namespace = type.getNamespace(values);
+
+		// the user can set this explicitly
+		Boolean elementQualified = marshaller.getIsElementQualified();
+		Boolean attributeQualified = marshaller.getIsAttributeQualified();
+		if (elementQualified == null) {
+			elementQualified = type.isElementQualified(values);
+		}
+		if (attributeQualified == null) {
+			attributeQualified = type.isAttributeQualified(values);
+		}
+		this.elementQualified = elementQualified != null && elementQualified;
+		this.attributeQualified = attributeQualified != null && attributeQualified;
+
+		be.nabu.libs.types.api.Element<?> root = new ComplexElementImpl(type, null, values);
+		try {
+			// first pass: register all the types
+			schema = new StreamedSchema(namespace);
+			schema.declarations.add(root);
+			writeElement(schema, root, null);
+			walk();
+
+			if (marshaller.isCanonical()) {
+				canonicalize(schema);
+				for (StreamedSchema attachment : attachments.values()) {
+					canonicalize(attachment);
+				}
+			}
+
+			// second pass: write everything
+			scratch = marshaller.newScratchDocument();
+			write(schema, false, output);
+			AttachmentProvider attachmentProvider = marshaller.getAttachmentProvider();
+			if (attachmentProvider != null) {
+				for (StreamedSchema attachment : attachments.values()) {
+					OutputStream attachmentOutput = attachmentProvider.getOutput(attachment.namespace);
+					try {
+						write(attachment, true, attachmentOutput);
+					}
+					finally {
+						attachmentOutput.close();
+					}
+				}
+			}
+		}
+		catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Everything that is written is known after the first pass so we can simply reorder it the way the marshaller does for canonical documents
+	 */
+	private void canonicalize(StreamedSchema schema) {
+		List<String> namespaces = new ArrayList<String>(schema.prefixes.keySet());
+		Collections.sort(namespaces);
+		schema.prefixes.clear();
+		for (String namespace : namespaces) {
+			schema.prefixes.put(namespace, "tns" + schema.prefixes.size());
+		}
+		Collections.sort(schema.imports, new Comparator<Map<String, String>>() {
+			@Override
+			public int compare(Map<String, String> first, Map<String, String> second) {
+				return first.get("namespace").compareTo(second.get("namespace"));
+			}
+		});
+		Collections.sort(schema.declarations, new Comparator<Object>() {
+			@Override
+			public int compare(Object first, Object second) {
+				int result = getOrder(first) - getOrder(second);
+				return result == 0 ? getName(first).compareTo(getName(second)) : result;
+			}
+			private int getOrder(Object declaration) {
+				return declaration instanceof be.nabu.libs.types.api.Element ? 0 : (declaration instanceof ComplexType ? 1 : 2);
+			}
+			private String getName(Object declaration) {
+				return declaration instanceof be.nabu.libs.types.api.Element
+					? marshaller.getElementName((be.nabu.libs.types.api.Element<?>) declaration)
+					: marshaller.getTypeName((Type) declaration, getNamespace((Type) declaration));
+			}
+		});
+	}
+
+	private void write(StreamedSchema schema, boolean attachment, OutputStream output) throws XMLStreamException, IOException {
+		if (listener == null) {
+			writeCompressible(schema, output);
+		}
+		else {
+			long started = System.nanoTime();
+			CountingOutputStream counting = new CountingOutputStream(output);
+			writeCompressible(schema, counting);
+			listener.serialized(schema.namespace, attachment, counting.getCount(), System.nanoTime() - started);
+		}
+	}
+
+	private void writeCompressible(StreamedSchema schema, OutputStream output) throws XMLStreamException, IOException {
+		if (marshaller.isCompressed()) {
+			GZIPOutputStream gzip = new GZIPOutputStream(output);
+			write(schema, gzip);
+			gzip.finish();
+		}
+		else {
+			write(schema, output);
+		}
+	}
+
+	private void write(StreamedSchema schema, OutputStream output) throws XMLStreamException, IOException {
+		written = false;
+		// the output has to be identical to that of the dom so we can't use writeStartDocument()
+		if (!marshaller.isOmitXMLDeclaration()) {
+			output.write(DECLARATION.getBytes("UTF-8"));
+			written = true;
+		}
+		writer = OUTPUT_FACTORY.createXMLStreamWriter(output, "UTF-8");
+		depth = 0;
+		try {
+			Map<String, String> attributes = new TreeMap<String, String>();
+			attributes.put("xmlns", NAMESPACE);
+			if (elementQualified) {
+				attributes.put("elementFormDefault", "qualified");
+			}
+			if (attributeQualified) {
+				attributes.put("attributeFormDefault", "qualified");
+			}
+			if (schema.namespace != null) {
+				attributes.put("targetNamespace", schema.namespace);
+				attributes.put("xmlns:tns", schema.namespace);
+			}
+			for (Map.Entry<String, String> prefix : schema.prefixes.entrySet()) {
+				attributes.put("xmlns:" + prefix.getValue(), prefix.getKey());
+			}
+			start("schema", attributes);
+			for (Map<String, String> importAttributes : schema.imports) {
+				start("import", importAttributes);
+				end();
+			}
+			for (Object declaration : schema.declarations) {
+				if (declaration instanceof be.nabu.libs.types.api.Element) {
+					writeElement(schema, (be.nabu.libs.types.api.Element<?>) declaration, null);
+				}
+				else if (declaration instanceof SimpleType) {
+					writeSimpleType(schema, (SimpleType<?>) declaration, null, true);
+				}
+				else {
+					writeComplexType(schema, (ComplexType) declaration, true);
+				}
+				walk();
+			}
+			end();
+			// the transformer ends an indented document with a line feed
+			if (!marshaller.isCompact()) {
+				writer.writeCharacters("\n");
+			}
+			writer.writeEndDocument();
+			writer.flush();
+		}
+		finally {
+			// this does not close the underlying stream
+			writer.close();
+			writer = null;
+		}
+	}
+
+	/**
+	 * Attributes are added to the deferred list if there is one (they have to appear after the container) and we are writing
+	 */
+	private void writeElement(StreamedSchema schema, be.nabu.libs.types.api.Element<?> child, List<be.nabu.libs.types.api.Element<?>> deferred) throws XMLStreamException {
+		boolean isAttribute = marshaller.isAttribute(child);
+		if (isAttribute && deferred != null && writer != null) {
+			deferred.add(child);
+			return;
+		}
+		Type type = child.getType();
+		Map<String, String> attributes = null;
+		if (writer != null) {
+			if (listener != null) {
+				listener.elementWritten(child, isAttribute);
+			}
+			attributes = new TreeMap<String, String>();
+			marshaller.writeAttributes(scratch, attributes, marshaller.getElementAttributes(child, isAttribute));
+			if (isAttribute) {
+				attributes.put("name", marshaller.getAttributeName(child));
+				if (marshaller.isOptional(child)) {
+					attributes.put("use", "optional");
+				}
+			}
+			if (!attributes.containsKey("name")) {
+				attributes.put("name", marshaller.getElementName(child));
+			}
+		}
+		Value<?>[] restrictions = null;
+		if (type.getName() != null) {
+			restrictions = marshaller.getRestrictions(child);
+			// check if we need to add restrictions, currently we do this if it is a simple type and references a standard one
+			if (!(type instanceof SimpleType && NAMESPACE.equals(getNamespace(type)) && restrictions != null && restrictions.length > 0)) {
+				restrictions = null;
+				String prefix = "";
+				// if its not in the xsd namespace, it is custom
+				if (!NAMESPACE.equals(getNamespace(type))) {
+					define(schema, type);
+					prefix = getNamespacePrefix(schema, getNamespace(type));
+					if (prefix != null && !prefix.isEmpty()) {
+						prefix += ":";
+					}
+				}
+				if (attributes != null) {
+					attributes.put("type", prefix + marshaller.getTypeName(type, getNamespace(type), child.getProperties()));
+				}
+			}
+		}
+		start(isAttribute ? "attribute" : "element", attributes);
+		// the element is closed once everything that is scheduled for its content is written
+		scheduleEnd();
+		if (restrictions != null) {
+			writeSimpleType(schema, (SimpleType<?>) type, restrictions, false);
+		}
+		else if (type.getName() == null) {
+			define(schema, type);
+		}
+	}
+
+	private void writeComplexType(final StreamedSchema schema, ComplexType type, boolean standalone) throws XMLStreamException {
+		Map<String, String> attributes = null;
+		if (writer != null) {
+			if (listener != null) {
+				listener.complexTypeWritten(type);
+			}
+			attributes = new TreeMap<String, String>();
+			if (standalone) {
+				attributes.put("name", marshaller.getTypeName(type, getNamespace(type)));
+			}
+			marshaller.writeAttributes(scratch, attributes, marshaller.getComplexTypeAttributes(type));
+		}
+		start("complexType", attributes);
+		if (!standalone) {
+			// there is no way to move the type to the schema once it is streamed, the DOM writer does support this
+			if (!openTypes.add(type)) {
+				throw new MarshalException("Recursive anonymous types can not be streamed, disable streaming or name the type");
+			}
+			final ComplexType anonymousType = type;
+			tasks.push(new Step() {
+				@Override
+				public void run() {
+					openTypes.remove(anonymousType);
+				}
+			});
+		}
+		scheduleEnd();
+
+		boolean simpleContent = type instanceof SimpleType;
+		if (simpleContent) {
+			SimpleType<?> simpleType = (SimpleType<?>) type.get(ComplexType.SIMPLE_TYPE_VALUE).getType();
+			String prefix = "";
+			if (!NAMESPACE.equals(getNamespace(simpleType))) {
+				define(schema, simpleType);
+				prefix = getNamespacePrefix(schema, getNamespace(simpleType));
+				if (prefix != null && !prefix.isEmpty()) {
+					prefix += ":";
+				}
+			}
+			start("simpleContent", null);
+			scheduleEnd();
+			Map<String, String> extensionAttributes = null;
+			if (writer != null) {
+				extensionAttributes = new TreeMap<String, String>();
+				extensionAttributes.put("base", prefix + simpleType.getName(type.getProperties()));
+			}
+			start("extension", extensionAttributes);
+		}
+		else {
+			start("sequence", null);
+		}
+
+		// the steps are scheduled in reverse: the super type, the particles, closing the sequence (or extension) and the attributes that have to be written after it
+		final List<be.nabu.libs.types.api.Element<?>> deferred = new ArrayList<be.nabu.libs.types.api.Element<?>>();
+		scheduleDeferred(schema, deferred);
+		scheduleEnd();
+		List<Particle> particles = marshaller.getParticles(type);
+		for (int i = particles.size() - 1; i >= 0; i--) {
+			final Particle particle = particles.get(i);
+			tasks.push(new Step() {
+				@Override
+				public void run() throws XMLStreamException {
+					writeParticle(schema, particle, deferred);
+				}
+			});
+		}
+		if (marshaller.isUseExtension() && type.getSuperType() instanceof ComplexType) {
+			final Type superType = type.getSuperType();
+			tasks.push(new Step() {
+				@Override
+				public void run() throws XMLStreamException {
+					define(schema, superType);
+				}
+			});
+		}
+	}
+
+	private void writeParticle(final StreamedSchema schema, Particle particle, final List<be.nabu.libs.types.api.Element<?>> deferred) throws XMLStreamException {
+		if (particle.getChoice() != null) {
+			Map<String, String> choiceAttributes = null;
+			if (writer != null) {
+				choiceAttributes = new TreeMap<String, String>();
+				marshaller.writeAttributes(scratch, choiceAttributes, particle.getChoice().getProperties());
+			}
+			start("choice", choiceAttributes);
+			// attributes in a choice end up in the parent of the choice
+			final List<be.nabu.libs.types.api.Element<?>> choiceDeferred = new ArrayList<be.nabu.libs.types.api.Element<?>>();
+			scheduleDeferred(schema, choiceDeferred);
+			scheduleEnd();
+			List<be.nabu.libs.types.api.Element<?>> options = particle.getElements();
+			for (int i = options.size() - 1; i >= 0; i--) {
+				final be.nabu.libs.types.api.Element<?> option = options.get(i);
+				tasks.push(new Step() {
+					@Override
+					public void run() throws XMLStreamException {
+						writeElement(schema, option, choiceDeferred);
+					}
+				});
+			}
+		}
+		else {
+			writeElement(schema, particle.getElements().get(0), deferred);
+		}
+	}
+
+	/**
+	 * The deferred attributes are only known once the particles before it have run so the list is resolved when the step runs
+	 */
+	private void scheduleDeferred(final StreamedSchema schema, final List<be.nabu.libs.types.api.Element<?>> deferred) {
+		tasks.push(new Step() {
+			@Override
+			public void run() throws XMLStreamException {
+				for (int i = deferred.size() - 1; i >= 0; i--) {
+					final be.nabu.libs.types.api.Element<?> child = deferred.get(i);
+					tasks.push(new Step() {
+						@Override
+						public void run() throws XMLStreamException {
+							writeElement(schema, child, null);
+						}
+					});
+				}
+			}
+		});
+	}
+
+	private void scheduleEnd() {
+		// nothing to close in the first pass
+		if (writer != null) {
+			tasks.push(closeElement);
+		}
+	}
+
+	/**
+	 * Runs the scheduled steps until the declaration that was started is fully written, nested types are handled here instead of recursively
+	 */
+	private void walk() throws XMLStreamException {
+		try {
+			Step step;
+			while ((step = tasks.poll()) != null) {
+				step.run();
+			}
+		}
+		finally {
+			tasks.clear();
+			openTypes.clear();
+		}
+	}
+
+	private void writeSimpleType(StreamedSchema schema, SimpleType<?> simpleType, Value<?>[] restrictions, boolean standalone) throws XMLStreamException {
+		// simple types do not reference anything so there is nothing to register
+		if (writer == null) {
+			return;
+		}
+		if (listener != null) {
+			listener.simpleTypeWritten(simpleType);
+		}
+		Map<String, String> attributes = new TreeMap<String, String>();
+		if (standalone) {
+			attributes.put("name", marshaller.getTypeName(simpleType, getNamespace(simpleType)));
+		}
+		start("simpleType", attributes);
+		Map<String, String> restrictionAttributes = new TreeMap<String, String>();
+		restrictionAttributes.put("base", marshaller.getRestrictionBase(simpleType));
+		start("restriction", restrictionAttributes);
+		if (restrictions == null) {
+			restrictions = marshaller.getRestrictions(simpleType);
+		}
+		for (String [] facet : marshaller.getFacets(restrictions)) {
+			writeFacet(facet[0], facet[1]);
+		}
+		end();
+		end();
+	}
+
+	private void writeFacet(String name, String value) throws XMLStreamException {
+		Map<String, String> attributes = new HashMap<String, String>();
+		attributes.put("value", value);
+		start(name, attributes);
+		end();
+	}
+
+	private void define(StreamedSchema parent, Type type) throws XMLStreamException {
+		if (type.getName() == null) {
+			if (type instanceof SimpleType) {
+				writeSimpleType(parent, (SimpleType<?>) type, null, false);
+			}
+			else {
+				writeComplexType(parent, (ComplexType) type, false);
+			}
+		}
+		// named types are written from the declarations of their schema in the second pass
+		else if (writer == null) {
+			StreamedSchema target = getTargetSchema(parent, getNamespace(type));
+			String name = marshaller.getTypeName(type, getNamespace(type));
+			boolean existing = type instanceof SimpleType
+				? registry.getSimpleType(type.getNamespace(), name) != null
+				: registry.getComplexType(type.getNamespace(), name) != null;
+			if (listener != null) {
+				listener.defined(type.getNamespace(), name, existing);
+			}
+			if (existing) {
+				return;
+			}
+			else if (type instanceof SimpleType) {
+				registry.register((SimpleType<?>) type);
+				target.declarations.add(type);
+			}
+			else {
+				registry.register((ComplexType) type);
+				target.declarations.add(type);
+				writeComplexType(target, (ComplexType) type, true);
+			}
+		}
+	}
+
+	private StreamedSchema getTargetSchema(StreamedSchema parent, String namespace) {
+		// for the root scheme, just return that
+		if ((this.namespace == null && namespace == null) || (this.namespace != null && this.namespace.equals(namespace))) {
+			// an attachment that refers back to the root still needs a prefix and an import
+			if (parent != schema) {
+				getNamespacePrefix(parent, namespace);
+				importSchema(parent, namespace);
+			}
+			return schema;
+		}
+		// get a prefix for this namespace, if it already exists, awesome, if it doesn't it is created
+		getNamespacePrefix(parent, namespace);
+		if (!attachments.containsKey(namespace)) {
+			attachments.put(namespace, new StreamedSchema(namespace));
+			if (listener != null) {
+				listener.attachmentCreated(namespace);
+			}
+		}
+		importSchema(parent, namespace);
+		return attachments.get(namespace);
+	}
+
+	private void importSchema(StreamedSchema parent, String namespace) {
+		// a schema can not import its own namespace, the type is already visible
+		if (parent.namespace == null ? namespace == null : parent.namespace.equals(namespace)) {
+			return;
+		}
+		boolean created = parent.imported.add(namespace);
+		if (listener != null) {
+			listener.schemaImported(namespace, created);
+		}
+		if (created) {
+			Map<String, String> attributes = new TreeMap<String, String>();
+			// an import without a namespace imports the types without a namespace
+			if (namespace != null) {
+				attributes.put("namespace", namespace);
+			}
+			String schemaLocation = getSchemaLocation(namespace);
+			// allow null values for schema location (e.g. in a WSDL)
+			if (schemaLocation != null && marshaller.isIncludeSchemaLocation()) {
+				attributes.put("schemaLocation", schemaLocation);
+			}
+			// the dom inserts new imports before the first child
+			parent.imports.addFirst(attributes);
+		}
+	}
+	
+	private String getSchemaLocation(String namespace) {
+		// the root schema is not an attachment, it has no location of its own but any processor already has it because it imports the attachment
+		if (this.namespace == null ? namespace == null : this.namespace.equals(namespace)) {
+			return null;
+		}
+		AttachmentProvider attachmentProvider = marshaller.getAttachmentProvider();
+		if (attachmentProvider == null) {
+			return "attachments:/" + namespace;
+		}
+		URI uri = attachmentProvider.getURI(namespace);
+		return uri == null ? null : uri.toString();
+	}
+
+	private String getNamespacePrefix(StreamedSchema schema, String namespace) {
+		if (NAMESPACE.equals(namespace)) {
+			return null;
+		}
+		else if (namespace == null || namespace.equals(schema.namespace)) {
+			return "tns";
+		}
+		String prefix = schema.prefixes.get(namespace);
+		if (prefix == null) {
+			if (writer != null) {
+				throw new IllegalStateException("No prefix was registered for namespace '" + namespace + "'");
+			}
+			prefix = "tns" + schema.prefixes.size();
+			schema.prefixes.put(namespace, prefix);
+			if (listener != null) {
+				listener.namespacePrefixResolved(namespace, true);
+			}
+		}
+		// the second pass only reads what the first registered
+		else if (listener != null && writer == null) {
+			listener.namespacePrefixResolved(namespace, false);
+		}
+		return prefix;
+	}
+
+	private String getNamespace(Type type) {
+		return type.getNamespace() == null || type.getNamespace().trim().isEmpty() ? namespace : type.getNamespace();
+	}
+
+	private void start(String name, Map<String, String> attributes) throws XMLStreamException {
+		if (writer != null) {
+			// the pending element has a child so it can't be empty
+			writePending(false);
+			pendingName = name;
+			pendingAttributes = attributes;
+		}
+	}
+
+	private void end() throws XMLStreamException {
+		if (writer != null) {
+			if (pendingName != null) {
+				writePending(true);
+			}
+			else {
+				depth--;
+				indent();
+				writer.writeEndElement();
+			}
+		}
+	}
+
+	private void writePending(boolean empty) throws XMLStreamException {
+		if (pendingName != null) {
+			indent();
+			if (empty) {
+				writer.writeEmptyElement(pendingName);
+			}
+			else {
+				writer.writeStartElement(pendingName);
+				depth++;
+			}
+			if (pendingAttributes != null) {
+				// the serializer writes the namespace declarations before the other attributes
+				for (Map.Entry<String, String> attribute : pendingAttributes.entrySet()) {
+					if (attribute.getValue() == null) {
+						continue;
+					}
+					else if (attribute.getKey().equals("xmlns")) {
+						writer.writeDefaultNamespace(attribute.getValue());
+					}
+					else if (attribute.getKey().startsWith("xmlns:")) {
+						writer.writeNamespace(attribute.getKey().substring("xmlns:".length()), attribute.getValue());
+					}
+				}
+				for (Map.Entry<String, String> attribute : pendingAttributes.entrySet()) {
+					if (attribute.getValue() != null && !attribute.getKey().equals("xmlns") && !attribute.getKey().startsWith("xmlns:")) {
+						writer.writeAttribute(attribute.getKey(), attribute.getValue());
+					}
+				}
+			}
+			pendingName = null;
+			pendingAttributes = null;
+		}
+	}
+
+	private void indent() throws XMLStreamException {
+		if (!marshaller.isCompact()) {
+			if (written) {
+				writer.writeCharacters("\n");
+			}
+			for (int i = 0; i < depth; i++) {
+				writer.writeCharacters(INDENT);
+			}
+		}
+		written = true;
+	}
+
+	private interface Step {
+		public void run() throws XMLStreamException;
+	}
+
+	private static class StreamedSchema {
+		private String namespace;
+		/**
+		 * The additional prefixes (apart from tns) in the order they were registered
+		 */
+		private Map<String, String> prefixes = new LinkedHashMap<String, String>();
+		private LinkedList<Map<String, String>> imports = new LinkedList<Map<String, String>>();
+		private Set<String> imported = new HashSet<String>();
+		/**
+		 * The top level elements and types in the order they were registered
+		 */
+		private List<Object> declarations = new ArrayList<Object>();
+
+		public StreamedSchema(String namespace) {
+			this.namespace = namespace;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * A batch of roots that share types writes every shared type once, the root schemas only contain their root element
+ */
+public class TestBatch {
+	public static void main(String...args) throws Exception {
+		Structure order = TestStreaming.newMultiNamespaceType();
+		ComplexType person = (ComplexType) order.get("customer").getType();
+		ComplexType address = (ComplexType) order.get("delivery").getType();
+		List<be.nabu.libs.types.api.Element<?>> roots = new ArrayList<be.nabu.libs.types.api.Element<?>>();
+		roots.add(new ComplexElementImpl(order, null));
+		roots.add(new ComplexElementImpl(person, null));
+		roots.add(new ComplexElementImpl(address, null));
+		
+		CountingAttachments attachments = new CountingAttachments();
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setAttachmentProvider(attachments);
+		List<byte[]> schemas = marshaller.marshal(roots);
+		if (schemas.size() != roots.size()) {
+			throw new IllegalStateException("Expected " + roots.size() + " root schemas, got " + schemas.size());
+		}
+		for (int i = 0; i < roots.size(); i++) {
+			Document document = parse(schemas.get(i));
+			String targetNamespace = document.getDocumentElement().getAttribute("targetNamespace");
+			if (!roots.get(i).getNamespace().equals(targetNamespace)) {
+				throw new IllegalStateException("The root schema " + i + " is for " + targetNamespace + " instead of " + roots.get(i).getNamespace());
+			}
+			if (count(document, "complexType") != 0 || count(document, "element") != 1) {
+				throw new IllegalStateException("The root schema of " + roots.get(i).getName() + " should only contain the root element:\n" + new String(schemas.get(i), "UTF-8"));
+			}
+		}
+		
+		// every namespace is written once and contains each of its types once
+		for (String namespace : Arrays.asList(order.getNamespace(), person.getNamespace(), address.getNamespace())) {
+			if (!Integer.valueOf(1).equals(attachments.counts.get(namespace))) {
+				throw new IllegalStateException("The attachment " + namespace + " was written " + attachments.counts.get(namespace) + " times");
+			}
+			Document attachment = parse(attachments.getAttachments().get(namespace));
+			if (count(attachment, "complexType") != 1) {
+				throw new IllegalStateException("The attachment " + namespace + " should define exactly one type:\n" + new String(attachments.getAttachments().get(namespace), "UTF-8"));
+			}
+		}
+		if (attachments.counts.size() != 3) {
+			throw new IllegalStateException("Unexpected attachments: " + attachments.counts.keySet());
+		}
+		System.out.println("The batch shares its types");
+	}
+	
+	private static Document parse(byte [] content) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+	}
+	
+	private static int count(Document document, String localName) {
+		return document.getElementsByTagNameNS(XSDDefinitionMarshaller.NAMESPACE, localName).getLength();
+	}
+	
+	private static class CountingAttachments extends MemoryAttachments {
+		private Map<String, Integer> counts = new HashMap<String, Integer>();
+		
+		@Override
+		public OutputStream getOutput(String namespace) throws IOException {
+			Integer count = counts.get(namespace);
+			counts.put(namespace, count == null ? 1 : count + 1);
+			return super.getOutput(namespace);
+		}
+	}
+}
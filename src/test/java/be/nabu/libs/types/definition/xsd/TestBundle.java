@@ -0,0 +1,143 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.xml.XMLConstants;
+import javax.xml.validation.SchemaFactory;
+
+import org.xml.sax.SAXException;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+
+/**
+ * The gzipped output has to decompress to the regular output and the zip bundle has to contain a schema set that compiles on its own
+ */
+public class TestBundle {
+	public static void main(String...args) throws IOException, SAXException {
+		ComplexType type = TestParallel.newNamespaceGraph(5, 2);
+		checkCompressed(type);
+		checkZip(type);
+		System.out.println("The bundles contain the schemas");
+	}
+	
+	private static void checkCompressed(ComplexType type) throws IOException {
+		MemoryAttachments plainAttachments = new MemoryAttachments();
+		byte [] plain = marshal(type, false, plainAttachments);
+		MemoryAttachments compressedAttachments = new MemoryAttachments();
+		byte [] compressed = marshal(type, true, compressedAttachments);
+		compare("the root", plain, gunzip(compressed));
+		Map<String, byte[]> expected = plainAttachments.getAttachments(), actual = compressedAttachments.getAttachments();
+		if (!expected.keySet().equals(actual.keySet())) {
+			throw new IllegalStateException("The compressed attachments differ: " + expected.keySet() + " versus " + actual.keySet());
+		}
+		for (String namespace : expected.keySet()) {
+			compare(namespace, expected.get(namespace), gunzip(actual.get(namespace)));
+		}
+		
+		// the in memory result compresses on request
+		MarshalledSchema schema = new XSDDefinitionMarshaller().marshalToBytes(type);
+		compare("the in memory root", schema.getRoot(), gunzip(schema.getCompressedRoot()));
+		for (Map.Entry<String, byte[]> attachment : schema.getCompressedAttachments().entrySet()) {
+			compare("the in memory " + attachment.getKey(), schema.getAttachments().get(attachment.getKey()), gunzip(attachment.getValue()));
+		}
+	}
+	
+	private static void checkZip(ComplexType type) throws IOException, SAXException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshalToZip(output, type);
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()));
+		try {
+			ZipEntry entry;
+			while ((entry = zip.getNextEntry()) != null) {
+				entries.put(entry.getName(), read(zip));
+			}
+		}
+		finally {
+			zip.close();
+		}
+		int attachments = new XSDDefinitionMarshaller().marshalToBytes(type).getAttachments().size();
+		if (!entries.containsKey(XSDDefinitionMarshaller.BUNDLE_ROOT) || entries.size() != attachments + 1) {
+			throw new IllegalStateException("Expected the root and " + attachments + " attachments in the zip: " + entries.keySet());
+		}
+		// the schema locations have to point to the other entries
+		File directory = Files.createTempDirectory("bundle").toFile();
+		try {
+			for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+				Files.write(new File(directory, entry.getKey()).toPath(), entry.getValue());
+			}
+			SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI).newSchema(new File(directory, XSDDefinitionMarshaller.BUNDLE_ROOT));
+		}
+		finally {
+			for (String name : entries.keySet()) {
+				new File(directory, name).delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	private static byte [] marshal(ComplexType type, boolean compressed, MemoryAttachments attachments) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setCompressed(compressed);
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		return output.toByteArray();
+	}
+	
+	private static void compare(String name, byte [] expected, byte [] actual) throws IOException {
+		if (!Arrays.equals(expected, actual)) {
+			throw new IllegalStateException("The content of " + name + " differs:\n" + new String(expected, "UTF-8") + "\n---\n" + new String(actual, "UTF-8"));
+		}
+	}
+	
+	private static byte [] gunzip(byte [] content) throws IOException {
+		GZIPInputStream input = new GZIPInputStream(new ByteArrayInputStream(content));
+		try {
+			return read(input);
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	private static byte [] read(InputStream input) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		byte [] buffer = new byte[4096];
+		int read;
+		while ((read = input.read(buffer)) > 0) {
+			output.write(buffer, 0, read);
+		}
+		return output.toByteArray();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.util.Map;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The canonical hash of an attachment may not depend on the order in which the types in it were reached
+ * The roots reference the same types with their fields in the opposite order, so the types, imports and prefixes of the shared namespace are created in the opposite order
+ */
+public class TestCanonical {
+	public static void main(String...args) throws IOException {
+		Structure first = newType("first", false), second = newType("second", true);
+		if (getHashes(first, false).equals(getHashes(second, false))) {
+			throw new IllegalStateException("The field order does not change the regular output, the test proves nothing");
+		}
+		Map<String, String> expected = getHashes(first, true), actual = getHashes(second, true);
+		if (!expected.equals(actual)) {
+			throw new IllegalStateException("The canonical hashes depend on the field order: " + expected + " versus " + actual);
+		}
+		if (!getHashes(first, true).equals(expected)) {
+			throw new IllegalStateException("The canonical hashes differ between runs");
+		}
+		System.out.println("The canonical hashes are stable");
+	}
+	
+	private static Map<String, String> getHashes(Structure type, boolean canonical) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setCanonical(canonical);
+		return marshaller.marshalToBytes(type).getAttachmentHashes();
+	}
+	
+	/**
+	 * A root with two types of the shared namespace that each reference a type in a namespace of their own
+	 */
+	private static Structure newType(String name, boolean reversed) {
+		Structure root = new Structure();
+		root.setName(name);
+		root.setNamespace("http://example.com/root");
+		Structure [] types = new Structure[2];
+		for (int i = 0; i < types.length; i++) {
+			Structure leaf = new Structure();
+			leaf.setName("leaf" + i);
+			leaf.setNamespace("http://example.com/leaf" + i);
+			leaf.add(new SimpleElementImpl<String>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), leaf));
+			types[i] = new Structure();
+			types[i].setName("shared" + i);
+			types[i].setNamespace("http://example.com/shared");
+			types[i].add(new ComplexElementImpl("leaf", leaf, types[i]));
+		}
+		for (int i = 0; i < types.length; i++) {
+			Structure type = types[reversed ? types.length - 1 - i : i];
+			root.add(new ComplexElementImpl(type.getName(), type, root));
+		}
+		return root;
+	}
+}
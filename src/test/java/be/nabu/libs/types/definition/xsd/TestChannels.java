@@ -0,0 +1,167 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+
+import be.nabu.libs.types.api.DefinedType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * A schema loaded from the store transfers its attachment files to the channels, the result has to be the same as writing the attachments from memory
+ */
+public class TestChannels {
+	public static void main(String...args) throws IOException {
+		Path directory = Files.createTempDirectory("store");
+		try {
+			ChannelAttachments generatedAttachments = new ChannelAttachments();
+			XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+			marshaller.setAttachmentProvider(generatedAttachments);
+			DefinedStructure type = newDefinedType();
+			MarshalledSchema generated = new XSDSchemaStore(marshaller, directory).get(type);
+			if (generated.getAttachments().isEmpty()) {
+				throw new IllegalStateException("The type has no attachments, the test proves nothing");
+			}
+			check("generated", generated, generatedAttachments, false);
+			
+			// a new store only finds the files
+			ChannelAttachments loadedAttachments = new ChannelAttachments();
+			marshaller.setAttachmentProvider(loadedAttachments);
+			XSDSchemaStore store = new XSDSchemaStore(marshaller, directory);
+			MarshalledSchema loaded = store.get(type);
+			check("loaded", loaded, loadedAttachments, true);
+			generatedAttachments.compare("the loaded schema", loadedAttachments);
+			
+			// once the files are gone, the attachments are written from memory
+			store.invalidate(type.getId());
+			ChannelAttachments invalidatedAttachments = new ChannelAttachments();
+			check("invalidated", loaded, invalidatedAttachments, false);
+			generatedAttachments.compare("the invalidated schema", invalidatedAttachments);
+		}
+		finally {
+			delete(directory.toFile());
+		}
+		System.out.println("The stored attachments are transferred to the channels");
+	}
+	
+	private static void check(String name, MarshalledSchema schema, ChannelAttachments attachments, boolean transferred) throws IOException {
+		attachments.memory = schema.getAttachments().values();
+		ByteArrayOutputStream root = new ByteArrayOutputStream();
+		schema.write(root, attachments);
+		if (!Arrays.equals(schema.getRoot(), root.toByteArray())) {
+			throw new IllegalStateException("The root of the " + name + " schema differs");
+		}
+		Map<String, byte[]> written = attachments.getAttachments();
+		if (!written.keySet().equals(schema.getAttachments().keySet())) {
+			throw new IllegalStateException("The " + name + " schema wrote " + written.keySet() + " instead of " + schema.getAttachments().keySet());
+		}
+		for (String namespace : written.keySet()) {
+			if (!Arrays.equals(schema.getAttachments().get(namespace), written.get(namespace))) {
+				throw new IllegalStateException("The attachment " + namespace + " of the " + name + " schema differs:\n" + new String(written.get(namespace), "UTF-8"));
+			}
+		}
+		if (attachments.fromMemory == transferred) {
+			throw new IllegalStateException("The attachments of the " + name + " schema were " + (transferred ? "not " : "") + "transferred from the files");
+		}
+	}
+	
+	/**
+	 * A defined root that references types in two other namespaces
+	 */
+	static DefinedStructure newDefinedType() {
+		Structure order = TestStreaming.newMultiNamespaceType();
+		DefinedStructure type = new DefinedStructure("example.order");
+		type.setName("order");
+		type.setNamespace(order.getNamespace());
+		type.add(new ComplexElementImpl("customer", (Structure) order.get("customer").getType(), type));
+		type.add(new ComplexElementImpl("delivery", (Structure) order.get("delivery").getType(), type));
+		return type;
+	}
+	
+	static void delete(File file) {
+		File [] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+	
+	static class DefinedStructure extends Structure implements DefinedType {
+		private String id;
+		
+		DefinedStructure(String id) {
+			this.id = id;
+		}
+		
+		@Override
+		public String getId() {
+			return id;
+		}
+	}
+	
+	/**
+	 * Collects the attachments from the channels and remembers whether any of them was written straight from the arrays in memory
+	 */
+	private static class ChannelAttachments extends MemoryAttachments implements ChannelAttachmentProvider {
+		private Collection<byte[]> memory = Collections.emptyList();
+		private boolean fromMemory;
+		
+		@Override
+		public WritableByteChannel getChannel(String namespace) throws IOException {
+			final ByteArrayOutputStream output = (ByteArrayOutputStream) getOutput(namespace);
+			return new WritableByteChannel() {
+				private boolean open = true;
+				@Override
+				public boolean isOpen() {
+					return open;
+				}
+				@Override
+				public void close() {
+					open = false;
+				}
+				@Override
+				public int write(ByteBuffer buffer) {
+					if (buffer.hasArray()) {
+						for (byte [] content : memory) {
+							fromMemory |= content == buffer.array();
+						}
+					}
+					int length = buffer.remaining();
+					byte [] bytes = new byte[length];
+					buffer.get(bytes);
+					output.write(bytes, 0, length);
+					return length;
+				}
+			};
+		}
+	}
+}
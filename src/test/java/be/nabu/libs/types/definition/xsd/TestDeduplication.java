@@ -0,0 +1,89 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Identical anonymous types are only moved to a shared named type when deduplication is enabled, anonymous types that differ stay inline
+ */
+public class TestDeduplication {
+	public static void main(String...args) throws Exception {
+		Structure type = TestStreaming.newDuplicateType();
+		// same fields in a different order, this is a different type
+		Structure other = new Structure();
+		other.add(new SimpleElementImpl<String>("city", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), other));
+		other.add(new SimpleElementImpl<String>("street", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), other));
+		type.add(new ComplexElementImpl("postal", other, type));
+		
+		Map<String, Element> disabled = getElements(marshal(type, false));
+		for (String name : new String [] { "billing", "shipping", "postal" }) {
+			if (!disabled.get(name).getAttribute("type").isEmpty()) {
+				throw new IllegalStateException("The type of " + name + " was deduplicated while it is disabled");
+			}
+		}
+		
+		Map<String, Element> enabled = getElements(marshal(type, true));
+		String shared = enabled.get("billing").getAttribute("type");
+		if (shared.isEmpty() || !shared.equals(enabled.get("shipping").getAttribute("type"))) {
+			throw new IllegalStateException("The billing and shipping types were not deduplicated: " + shared + " versus " + enabled.get("shipping").getAttribute("type"));
+		}
+		if (!enabled.get("postal").getAttribute("type").isEmpty()) {
+			throw new IllegalStateException("The postal type was deduplicated with a type that has a different field order");
+		}
+		System.out.println("The anonymous types are deduplicated");
+	}
+	
+	private static byte [] marshal(Structure type, boolean deduplicate) throws Exception {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setDeduplicateAnonymousTypes(deduplicate);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		return output.toByteArray();
+	}
+	
+	/**
+	 * The named elements by name
+	 */
+	private static Map<String, Element> getElements(byte [] content) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+		Map<String, Element> elements = new HashMap<String, Element>();
+		NodeList list = document.getElementsByTagNameNS(XSDDefinitionMarshaller.NAMESPACE, "element");
+		for (int i = 0; i < list.getLength(); i++) {
+			Element element = (Element) list.item(i);
+			elements.put(element.getAttribute("name"), element);
+		}
+		return elements;
+	}
+}
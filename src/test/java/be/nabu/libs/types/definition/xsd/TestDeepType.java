@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+import org.w3c.dom.Document;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Marshals anonymous types that are nested very deeply, the type graph is walked with a work stack so this must not depend on the stack size of the thread
+ */
+public class TestDeepType {
+	
+	private static final int DEPTH = 1000;
+	
+	/**
+	 * Far too small to recurse through a thousand levels
+	 */
+	private static final long STACK_SIZE = 256 * 1024;
+	
+	public static void main(String...args) throws Exception {
+		final Structure structure = newDeepType(DEPTH);
+		// the dom is built on a small stack, serializing it is left to the transformer which does recurse so that happens on the main thread
+		final XSDDefinitionMarshaller marshaller = newMarshaller(false);
+		final XSDMarshalContext context = marshaller.newContext();
+		final Document [] document = new Document[1];
+		final ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		runWithSmallStack(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				document[0] = marshaller.build(context, structure);
+				newMarshaller(true).marshal(streamed, structure);
+				return null;
+			}
+		});
+		byte [] dom = marshaller.serialize(document[0]);
+		check(new String(dom, "UTF-8"), DEPTH);
+		if (!Arrays.equals(dom, streamed.toByteArray())) {
+			throw new IllegalStateException("The streamed schema differs from the dom");
+		}
+		System.out.println(DEPTH + " levels: " + dom.length + " bytes");
+	}
+	
+	/**
+	 * Compact, the indentation alone would otherwise grow quadratically with the depth
+	 */
+	private static XSDDefinitionMarshaller newMarshaller(boolean streaming) {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setStreaming(streaming);
+		marshaller.setCompact(true);
+		return marshaller;
+	}
+	
+	private static void runWithSmallStack(final Callable<Void> callable) throws Exception {
+		final Exception [] exception = new Exception[1];
+		final Error [] error = new Error[1];
+		Thread thread = new Thread(null, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					callable.call();
+				}
+				catch (Exception e) {
+					exception[0] = e;
+				}
+				catch (Error e) {
+					error[0] = e;
+				}
+			}
+		}, "deep", STACK_SIZE);
+		thread.start();
+		thread.join();
+		if (error[0] instanceof StackOverflowError) {
+			throw new IllegalStateException("The type graph is walked recursively", error[0]);
+		}
+		else if (error[0] != null) {
+			throw error[0];
+		}
+		else if (exception[0] != null) {
+			throw exception[0];
+		}
+	}
+	
+	/**
+	 * Every level has to be written exactly once, inside the previous one
+	 */
+	private static void check(String schema, int depth) {
+		int previous = -1;
+		for (int i = 0; i < depth; i++) {
+			int index = schema.indexOf("name=\"level" + i + "\"");
+			if (index < 0 || schema.indexOf("name=\"level" + i + "\"", index + 1) >= 0) {
+				throw new IllegalStateException("The level " + i + " is not written exactly once");
+			}
+			if (index < previous) {
+				throw new IllegalStateException("The level " + i + " is not nested in the previous level");
+			}
+			previous = index;
+		}
+		// all the levels are anonymous, only the root is named
+		if (schema.indexOf("<complexType name=") != schema.lastIndexOf("<complexType name=")) {
+			throw new IllegalStateException("Only the root type should be named");
+		}
+	}
+	
+	/**
+	 * Each level has a value and an anonymous type with the next level
+	 */
+	public static Structure newDeepType(int depth) {
+		Structure root = new Structure();
+		root.setName("deep");
+		root.setNamespace("http://example.com/deep");
+		Structure parent = root;
+		for (int i = 0; i < depth; i++) {
+			Structure level = new Structure();
+			level.add(new SimpleElementImpl<String>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), level));
+			parent.add(new ComplexElementImpl("level" + i, level, parent));
+			parent = level;
+		}
+		return root;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.base.ValueImpl;
+import be.nabu.libs.types.properties.EnumerationProperty;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The converted enumerations are cached per list of values, a list that is modified afterwards has to be converted again
+ */
+public class TestEnumerations {
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static void main(String...args) throws IOException {
+		List<String> values = new ArrayList<String>(Arrays.asList("red", "green", "blue"));
+		Structure structure = new Structure();
+		structure.setName("colors");
+		structure.setNamespace("http://example.com/colors");
+		structure.add(new SimpleElementImpl<String>("color", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure, new ValueImpl(new EnumerationProperty(), values)));
+		// the same marshaller, so the second run hits the cache
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		check(marshal(marshaller, structure), "green", "yellow");
+		// same size, replaced in place
+		values.set(1, "yellow");
+		check(marshal(marshaller, structure), "yellow", "green");
+		values.add("black");
+		check(marshal(marshaller, structure), "black", "green");
+		System.out.println("The modified enumerations are converted again");
+	}
+	
+	private static String marshal(XSDDefinitionMarshaller marshaller, Structure structure) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, structure);
+		return new String(output.toByteArray(), "UTF-8");
+	}
+	
+	private static void check(String schema, String expected, String unexpected) {
+		if (!schema.contains("<enumeration value=\"" + expected + "\"/>") || schema.contains("<enumeration value=\"" + unexpected + "\"/>")) {
+			throw new IllegalStateException("Expected the enumeration '" + expected + "' instead of '" + unexpected + "':\n" + schema);
+		}
+	}
+}
@@ -0,0 +1,71 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.NillableProperty;
+
+/**
+ * A subclass can still change the attributes of the elements by overriding fixAttributes(), this has to work for every writer
+ */
+public class TestFixAttributes {
+	public static void main(String...args) throws IOException {
+		for (boolean streaming : new boolean [] { false, true }) {
+			for (boolean precompiled : new boolean [] { false, true }) {
+				String name = (streaming ? "streaming" : "dom") + (precompiled ? " (precompiled)" : "");
+				if (!marshal(new XSDDefinitionMarshaller(), streaming, precompiled).contains("nillable=\"true\"")) {
+					throw new IllegalStateException("The default " + name + " schema does not mark the elements as nillable");
+				}
+				if (marshal(new NotNillableMarshaller(), streaming, precompiled).contains("nillable=")) {
+					throw new IllegalStateException("The overridden fixAttributes() is not used by the " + name + " schema");
+				}
+			}
+		}
+		System.out.println("The overridden attributes are used by all the writers");
+	}
+	
+	private static String marshal(XSDDefinitionMarshaller marshaller, boolean streaming, boolean precompiled) throws IOException {
+		marshaller.setStreaming(streaming);
+		marshaller.setPrecompiled(precompiled);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, new BeanType<Company>(Company.class));
+		return new String(output.toByteArray(), "UTF-8");
+	}
+	
+	/**
+	 * Leaves out nillable entirely, so the elements get the xsd default
+	 */
+	private static class NotNillableMarshaller extends XSDDefinitionMarshaller {
+		@Override
+		protected Value<?>[] fixAttributes(Value<?>...values) {
+			List<Value<?>> result = new ArrayList<Value<?>>();
+			for (Value<?> value : values) {
+				if (!(value.getProperty() instanceof NillableProperty)) {
+					result.add(value);
+				}
+			}
+			return result.toArray(new Value<?>[result.size()]);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+
+/**
+ * The attachments that are built on request have to be identical to the ones a sequential marshal writes, and they are only built when requested
+ */
+public class TestLazy {
+	public static void main(String...args) throws IOException {
+		compare("multiple namespaces", TestStreaming.newMultiNamespaceType());
+		compare("namespace graph", TestParallel.newNamespaceGraph(10, 2));
+		compare("detours", TestParallel.newDetourType());
+		System.out.println("The lazy schemas are identical to the sequential schemas");
+	}
+	
+	private static void compare(String name, ComplexType type) throws IOException {
+		MemoryAttachments attachments = new MemoryAttachments();
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		
+		XSDDefinitionMarshaller lazyMarshaller = new XSDDefinitionMarshaller();
+		lazyMarshaller.setAttachmentProvider(new MemoryAttachments());
+		LazyMarshalledSchema lazy = lazyMarshaller.marshalLazily(type);
+		if (!Arrays.equals(output.toByteArray(), lazy.getRoot())) {
+			throw new IllegalStateException("The lazy root of " + name + " differs:\n" + new String(output.toByteArray(), "UTF-8") + "\n---\n" + new String(lazy.getRoot(), "UTF-8"));
+		}
+		Map<String, byte[]> expected = attachments.getAttachments();
+		if (!expected.keySet().equals(new HashSet<String>(lazy.getNamespaces()))) {
+			throw new IllegalStateException("The lazy attachments of " + name + " differ: " + expected.keySet() + " versus " + lazy.getNamespaces());
+		}
+		for (String namespace : expected.keySet()) {
+			if (lazy.isMaterialized(namespace)) {
+				throw new IllegalStateException("The attachment " + namespace + " of " + name + " was built before it was requested");
+			}
+		}
+		for (String namespace : expected.keySet()) {
+			byte [] attachment = lazy.getAttachment(namespace);
+			if (!Arrays.equals(expected.get(namespace), attachment)) {
+				throw new IllegalStateException("The lazy attachment " + namespace + " of " + name + " differs:\n" + new String(expected.get(namespace), "UTF-8") + "\n---\n" + new String(attachment, "UTF-8"));
+			}
+			if (!lazy.isMaterialized(namespace)) {
+				throw new IllegalStateException("The attachment " + namespace + " of " + name + " is not kept");
+			}
+		}
+		if (lazy.getAttachment("http://example.com/unknown") != null) {
+			throw new IllegalStateException("An unknown namespace returned an attachment");
+		}
+	}
+}
@@ -0,0 +1,51 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+import be.nabu.libs.types.java.BeanType;
+
+/**
+ * The metrics have to cope with types that don't have a namespace, with a split root those end up in an attachment without a namespace
+ */
+public class TestMetrics {
+	public static void main(String...args) throws IOException {
+		XSDMarshalMetrics metrics = new XSDMarshalMetrics();
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setSplitRoot(true);
+		marshaller.setListener(metrics);
+		MemoryAttachments attachments = new MemoryAttachments();
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, new BeanType<Company>(Company.class));
+		if (!attachments.getAttachments().containsKey(null)) {
+			throw new IllegalStateException("Expected an attachment without a namespace: " + attachments.getNamespaces());
+		}
+		Long bytes = metrics.getAttachmentBytes().get("");
+		if (bytes == null || bytes != attachments.getAttachments().get(null).length) {
+			throw new IllegalStateException("The bytes of the attachment without a namespace are not counted: " + metrics.getAttachmentBytes());
+		}
+		if (metrics.getBytesWritten() != bytes + output.size()) {
+			throw new IllegalStateException("Expected " + (bytes + output.size()) + " bytes written: " + metrics);
+		}
+		System.out.println(metrics);
+	}
+}
@@ -0,0 +1,159 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Building the attachments in parallel has to result in exactly the same output as building them sequentially
+ * This includes the numbering of the prefixes and the order of the imports, so the output is not canonicalized
+ */
+public class TestParallel {
+	public static void main(String...args) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (boolean splitRoot : new boolean [] { false, true }) {
+				compare("company", new BeanType<Company>(Company.class), splitRoot, pool);
+				compare("multiple namespaces", TestStreaming.newMultiNamespaceType(), splitRoot, pool);
+				compare("namespace graph", newNamespaceGraph(30, 5), splitRoot, pool);
+				compare("detours", newDetourType(), splitRoot, pool);
+				// falls back to a sequential build
+				compare("recursion", TestValidation.newRecursiveType(), splitRoot, pool);
+			}
+		}
+		finally {
+			pool.shutdown();
+		}
+		System.out.println("The parallel schemas are identical to the sequential schemas");
+	}
+	
+	private static void compare(String name, ComplexType type, boolean splitRoot, ForkJoinPool pool) throws IOException {
+		name += splitRoot ? " (split root)" : "";
+		MemoryAttachments sequentialAttachments = new MemoryAttachments();
+		byte [] sequential = marshal(type, splitRoot, null, sequentialAttachments);
+		// repeated a few times, the order in which the forks finish differs between runs
+		for (int i = 0; i < 10; i++) {
+			MemoryAttachments parallelAttachments = new MemoryAttachments();
+			byte [] parallel = marshal(type, splitRoot, pool, parallelAttachments);
+			if (!Arrays.equals(sequential, parallel)) {
+				throw new IllegalStateException("The parallel root of " + name + " differs:\n" + new String(sequential, "UTF-8") + "\n---\n" + new String(parallel, "UTF-8"));
+			}
+			if (!sequentialAttachments.getNamespaces().equals(parallelAttachments.getNamespaces())) {
+				throw new IllegalStateException("The attachments of " + name + " are written in a different order: " + sequentialAttachments.getNamespaces() + " versus " + parallelAttachments.getNamespaces());
+			}
+			sequentialAttachments.compare(name, parallelAttachments);
+		}
+	}
+	
+	/**
+	 * The pool is only set for a parallel run
+	 */
+	private static byte [] marshal(ComplexType type, boolean splitRoot, ForkJoinPool pool, MemoryAttachments attachments) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setSplitRoot(splitRoot);
+		marshaller.setParallel(pool != null);
+		marshaller.setForkJoinPool(pool);
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		return output.toByteArray();
+	}
+	
+	/**
+	 * Named types that each live in their own namespace and reference the types in the next few namespaces, the last one refers back to the root namespace
+	 */
+	static Structure newNamespaceGraph(int namespaces, int fields) {
+		Structure root = new Structure();
+		root.setName("graph");
+		root.setNamespace("http://example.com/graph");
+		List<Structure> types = new ArrayList<Structure>();
+		for (int i = 0; i < namespaces; i++) {
+			Structure structure = new Structure();
+			structure.setName("type" + i);
+			structure.setNamespace("http://example.com/graph/" + i);
+			for (int j = 0; j < fields; j++) {
+				structure.add(new SimpleElementImpl<String>("field" + j, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure));
+			}
+			types.add(structure);
+		}
+		for (int i = 0; i < namespaces; i++) {
+			for (int j = i + 1; j < Math.min(namespaces, i + 4); j++) {
+				types.get(i).add(new ComplexElementImpl("reference" + j, types.get(j), types.get(i)));
+			}
+		}
+		Structure shared = new Structure();
+		shared.setName("shared");
+		shared.setNamespace(root.getNamespace());
+		shared.add(new SimpleElementImpl<String>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), shared));
+		types.get(namespaces - 1).add(new ComplexElementImpl("shared", shared, types.get(namespaces - 1)));
+		root.add(new ComplexElementImpl("shared", shared, root));
+		for (int i = namespaces - 1; i >= 0; i--) {
+			root.add(new ComplexElementImpl("type" + i, types.get(i), root));
+		}
+		return root;
+	}
+	
+	/**
+	 * Types of the root namespace and of another namespace that are only reached by passing through a third namespace, they have to end up between the types that are reached directly
+	 * The root namespace is entered twice through "other" (once through "third" in between), the type in the root namespace that is referenced directly by the root comes last
+	 */
+	static Structure newDetourType() {
+		Structure root = newStructure("detour", "http://example.com/root");
+		Structure other = newStructure("other", "http://example.com/other");
+		Structure third = newStructure("third", "http://example.com/third");
+		Structure nested = newStructure("nested", other.getNamespace());
+		Structure last = newStructure("last", other.getNamespace());
+		Structure back = newStructure("back", root.getNamespace());
+		Structure deeper = newStructure("deeper", root.getNamespace());
+		Structure direct = newStructure("direct", root.getNamespace());
+		Structure leaf = newStructure("leaf", third.getNamespace());
+		root.add(new ComplexElementImpl("other", other, root));
+		root.add(new ComplexElementImpl("direct", direct, root));
+		other.add(new ComplexElementImpl("back", back, other));
+		other.add(new ComplexElementImpl("third", third, other));
+		other.add(new ComplexElementImpl("last", last, other));
+		// back in the first namespace through the third one
+		third.add(new ComplexElementImpl("nested", nested, third));
+		nested.add(new ComplexElementImpl("deeper", deeper, nested));
+		last.add(new ComplexElementImpl("leaf", leaf, last));
+		// a cycle through the root namespace
+		back.add(new ComplexElementImpl("other", other, back));
+		return root;
+	}
+	
+	private static Structure newStructure(String name, String namespace) {
+		Structure structure = new Structure();
+		structure.setName(name);
+		structure.setNamespace(namespace);
+		structure.add(new SimpleElementImpl<String>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure));
+		return structure;
+	}
+}
@@ -0,0 +1,97 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.definition.xsd.TestChannels.DefinedStructure;
+
+/**
+ * The queued types are generated in the order of their priority (and in the order they were queued for the same priority)
+ * The first type keeps the only thread busy until everything else is queued
+ */
+public class TestPrewarmer {
+	public static void main(String...args) throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1), release = new CountDownLatch(1);
+		final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+		XSDSchemaPrewarmer prewarmer = new XSDSchemaPrewarmer(new XSDSchemaCache(new XSDDefinitionMarshaller(), 100), 1);
+		prewarmer.setListener(new XSDPrewarmListener() {
+			@Override
+			public void warmed(String id, long nanos, int completed, int total) {
+				order.add(id);
+				if (id.equals("blocker")) {
+					started.countDown();
+					try {
+						release.await();
+					}
+					catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+			@Override
+			public void failed(String id, Exception exception, int completed, int total) {
+				order.add(id + " (failed: " + exception + ")");
+			}
+		});
+		try {
+			prewarmer.prewarm(newType("blocker"), 0);
+			if (!started.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("The first type was not generated");
+			}
+			prewarmer.prewarm(newType("low1"), 1);
+			prewarmer.prewarm(newType("high"), 5);
+			prewarmer.prewarm(newType("low2"), 1);
+			prewarmer.prewarm(newType("middle"), 3);
+			// already queued
+			if (prewarmer.prewarm(newType("high"), 10)) {
+				throw new IllegalStateException("A queued type was queued again");
+			}
+			release.countDown();
+			if (!prewarmer.await(10, TimeUnit.SECONDS)) {
+				throw new IllegalStateException("The types were not generated in time, generated: " + order);
+			}
+		}
+		finally {
+			prewarmer.shutdown();
+		}
+		List<String> expected = Arrays.asList("blocker", "high", "middle", "low1", "low2");
+		if (!expected.equals(order)) {
+			throw new IllegalStateException("The types were generated in the order " + order + " instead of " + expected);
+		}
+		if (prewarmer.getCompleted() != expected.size() || prewarmer.getTotal() != expected.size()) {
+			throw new IllegalStateException("Expected " + expected.size() + " types, completed " + prewarmer.getCompleted() + " of " + prewarmer.getTotal());
+		}
+		System.out.println("The types are prewarmed in the order of their priority");
+	}
+	
+	private static DefinedStructure newType(String id) {
+		DefinedStructure type = new DefinedStructure(id);
+		type.setName(id);
+		type.setNamespace("http://example.com/prewarm");
+		type.add(new SimpleElementImpl<String>("value", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), type));
+		return type;
+	}
+}
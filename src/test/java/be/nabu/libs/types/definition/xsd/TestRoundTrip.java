@@ -0,0 +1,123 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+
+import be.nabu.libs.property.ValueUtils;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.FormatProperty;
+
+/**
+ * Unmarshalling the output of the marshaller and marshalling it again has to result in the same schemas
+ * The first marshal of a bean can differ (the java types are richer than the schema), from then on it has to be stable
+ */
+public class TestRoundTrip {
+	public static void main(String...args) throws IOException, ParseException {
+		check("choices", TestWideType.newWideChoiceType(600), true);
+		check("multiple namespaces", TestStreaming.newMultiNamespaceType(), true);
+		check("company", roundTrip(new BeanType<Company>(Company.class), false), false);
+		checkNamesAndDates();
+		System.out.println("The unmarshalled schemas marshal to the same output");
+	}
+	
+	private static void check(String name, ComplexType type, boolean qualified) throws IOException, ParseException {
+		MemoryAttachments originalAttachments = new MemoryAttachments();
+		byte [] original = marshal(type, qualified, originalAttachments);
+		MemoryAttachments roundTripAttachments = new MemoryAttachments();
+		byte [] roundTrip = marshal(unmarshal(original, originalAttachments), null, roundTripAttachments);
+		if (!Arrays.equals(original, roundTrip)) {
+			throw new IllegalStateException("The round trip of " + name + " differs:\n" + new String(original, "UTF-8") + "\n---\n" + new String(roundTrip, "UTF-8"));
+		}
+		originalAttachments.compare(name, roundTripAttachments);
+	}
+	
+	/**
+	 * Names are only stripped when asked for and the date types keep their original type in the format
+	 */
+	private static void checkNamesAndDates() throws IOException, ParseException {
+		String schema = "<schema xmlns='" + XSDDefinitionMarshaller.NAMESPACE + "' xmlns:tns='urn:test' targetNamespace='urn:test'>"
+			+ "<element name='order' type='tns:OrderType'/>"
+			+ "<complexType name='OrderType'><sequence>"
+			+ "<element name='day' type='date'/><element name='at' type='time'/><element name='year' type='gYear'/><element name='created' type='dateTime'/>"
+			+ "</sequence></complexType></schema>";
+		XSDDefinitionUnmarshaller unmarshaller = new XSDDefinitionUnmarshaller();
+		ComplexType type = unmarshaller.unmarshal(new ByteArrayInputStream(schema.getBytes("UTF-8")));
+		if (!"OrderType".equals(type.getName())) {
+			throw new IllegalStateException("The name was changed: " + type.getName());
+		}
+		String [][] formats = { { "day", "date" }, { "at", "time" }, { "year", "gYear" }, { "created", null } };
+		for (String [] format : formats) {
+			be.nabu.libs.types.api.Element<?> element = type.get(format[0]);
+			if (!Date.class.equals(((SimpleType<?>) element.getType()).getInstanceClass())) {
+				throw new IllegalStateException("The element " + format[0] + " is not a date");
+			}
+			String actual = ValueUtils.getValue(new FormatProperty(), element.getProperties());
+			if (format[1] == null ? actual != null : !format[1].equals(actual)) {
+				throw new IllegalStateException("The element " + format[0] + " has format " + actual + " instead of " + format[1]);
+			}
+		}
+		unmarshaller.setRemoveTypeSuffix(true);
+		type = unmarshaller.unmarshal(new ByteArrayInputStream(schema.getBytes("UTF-8")));
+		if (!"Order".equals(type.getName())) {
+			throw new IllegalStateException("The suffix was not removed: " + type.getName());
+		}
+	}
+	
+	private static ComplexType roundTrip(ComplexType type, boolean qualified) throws IOException, ParseException {
+		MemoryAttachments attachments = new MemoryAttachments();
+		return unmarshal(marshal(type, qualified, attachments), attachments);
+	}
+	
+	/**
+	 * When qualified is null, the marshaller takes the form defaults from the type
+	 */
+	private static byte [] marshal(ComplexType type, Boolean qualified, MemoryAttachments attachments) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setIsElementQualified(qualified);
+		marshaller.setIsAttributeQualified(qualified);
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		return output.toByteArray();
+	}
+	
+	private static ComplexType unmarshal(byte [] schema, MemoryAttachments attachments) throws IOException, ParseException {
+		final Map<String, byte[]> imports = attachments.getAttachments();
+		XSDDefinitionUnmarshaller unmarshaller = new XSDDefinitionUnmarshaller();
+		unmarshaller.setRemoveTypeSuffix(true);
+		unmarshaller.setSchemaProvider(new SchemaProvider() {
+			@Override
+			public InputStream getInput(String namespace, String location) throws IOException {
+				byte [] content = imports.get(namespace);
+				return content == null ? null : new ByteArrayInputStream(content);
+			}
+		});
+		return unmarshaller.unmarshal(new ByteArrayInputStream(schema));
+	}
+}
@@ -0,0 +1,116 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.definition.xsd.TestChannels.DefinedStructure;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+
+/**
+ * A stored schema is loaded again after a restart (a new store on the same directory), a changed type switches to a new generation and the old one is removed
+ */
+public class TestStore {
+	public static void main(String...args) throws IOException {
+		Path directory = Files.createTempDirectory("store");
+		try {
+			DefinedStructure type = TestChannels.newDefinedType();
+			Path target = directory.resolve(XSDDefinitionMarshaller.getFileName(type.getId()));
+			
+			MarshalledSchema generated = newStore(directory).get(type);
+			String generation = getGeneration(target);
+			if (generation == null || !Files.isDirectory(target.resolve(generation))) {
+				throw new IllegalStateException("The schema was not stored");
+			}
+			
+			// a restart loads the stored generation
+			MarshalledSchema loaded = newStore(directory).get(type);
+			compare("the reloaded schema", generated, loaded);
+			if (!generation.equals(getGeneration(target))) {
+				throw new IllegalStateException("An unchanged type was stored again");
+			}
+			
+			// a change is stored in a new generation that replaces the old one
+			type.add(new SimpleElementImpl<String>("reference", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), type));
+			MarshalledSchema changed = newStore(directory).get(type);
+			compare("the changed schema", newMarshaller().marshalToBytes(type), changed);
+			String changedGeneration = getGeneration(target);
+			if (changedGeneration == null || changedGeneration.equals(generation) || !Files.isDirectory(target.resolve(changedGeneration))) {
+				throw new IllegalStateException("The changed schema was not stored in a new generation");
+			}
+			if (Files.exists(target.resolve(generation))) {
+				throw new IllegalStateException("The previous generation was not removed");
+			}
+			compare("the reloaded changed schema", changed, newStore(directory).get(type));
+			if (!changedGeneration.equals(getGeneration(target))) {
+				throw new IllegalStateException("The changed type was stored again after a restart");
+			}
+			
+			newStore(directory).invalidate(type.getId());
+			if (getGeneration(target) != null || Files.exists(target.resolve(changedGeneration))) {
+				throw new IllegalStateException("The invalidated schema is still stored");
+			}
+		}
+		finally {
+			TestChannels.delete(directory.toFile());
+		}
+		System.out.println("The stored schemas survive a restart");
+	}
+	
+	private static XSDDefinitionMarshaller newMarshaller() {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setAttachmentProvider(new MemoryAttachments());
+		return marshaller;
+	}
+	
+	private static XSDSchemaStore newStore(Path directory) {
+		return new XSDSchemaStore(newMarshaller(), directory);
+	}
+	
+	/**
+	 * The generation the index points to, null if there is no index
+	 */
+	private static String getGeneration(Path target) throws IOException {
+		Path index = target.resolve("index.properties");
+		if (!Files.exists(index)) {
+			return null;
+		}
+		Properties properties = new Properties();
+		InputStream input = Files.newInputStream(index);
+		try {
+			properties.load(input);
+		}
+		finally {
+			input.close();
+		}
+		return properties.getProperty("generation");
+	}
+	
+	private static void compare(String name, MarshalledSchema expected, MarshalledSchema actual) throws IOException {
+		if (!Arrays.equals(expected.getRoot(), actual.getRoot()) || !expected.getAttachmentHashes().equals(actual.getAttachmentHashes())) {
+			throw new IllegalStateException("The content of " + name + " differs:\n" + new String(expected.getRoot(), "UTF-8") + "\n---\n" + new String(actual.getRoot(), "UTF-8"));
+		}
+	}
+}
@@ -0,0 +1,164 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The streaming writer has to produce exactly the same bytes as the dom, including the attachments
+ */
+public class TestStreaming {
+	public static void main(String...args) throws IOException {
+		compare("company", new BeanType<Company>(Company.class));
+		compare("wide", TestWideType.newWideType(2500));
+		compare("multiple namespaces", newMultiNamespaceType());
+		compare("duplicates", newDuplicateType());
+		compare("detours", TestParallel.newDetourType());
+		// the streaming writer can't deduplicate, make sure we don't silently ignore the setting
+		if (Arrays.equals(marshal(newDuplicateType(), true, false, false, false, new MemoryAttachments()), marshal(newDuplicateType(), true, false, false, true, new MemoryAttachments()))) {
+			throw new IllegalStateException("The anonymous types are not deduplicated in streaming mode");
+		}
+		System.out.println("The streamed schemas are identical to the dom schemas");
+	}
+	
+	private static void compare(String name, ComplexType type) throws IOException {
+		for (int options = 0; options < 8; options++) {
+			boolean compact = (options & 1) != 0, canonical = (options & 2) != 0, deduplicate = (options & 4) != 0;
+			String description = name + (compact ? " (compact)" : "") + (canonical ? " (canonical)" : "") + (deduplicate ? " (deduplicated)" : "");
+			MemoryAttachments domAttachments = new MemoryAttachments();
+			byte [] dom = marshal(type, false, compact, canonical, deduplicate, domAttachments);
+			MemoryAttachments streamedAttachments = new MemoryAttachments();
+			byte [] streamed = marshal(type, true, compact, canonical, deduplicate, streamedAttachments);
+			if (!Arrays.equals(dom, streamed)) {
+				throw new IllegalStateException("The streamed root of " + description + " differs from the dom:\n" + new String(dom, "UTF-8") + "\n---\n" + new String(streamed, "UTF-8"));
+			}
+			domAttachments.compare(description, streamedAttachments);
+		}
+	}
+	
+	private static byte [] marshal(ComplexType type, boolean streaming, boolean compact, boolean canonical, boolean deduplicate, MemoryAttachments attachments) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setStreaming(streaming);
+		marshaller.setCompact(compact);
+		marshaller.setCanonical(canonical);
+		marshaller.setDeduplicateAnonymousTypes(deduplicate);
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		return output.toByteArray();
+	}
+	
+	/**
+	 * A root in one namespace that refers to types in two others, one of which refers back to the first
+	 */
+	static Structure newMultiNamespaceType() {
+		Structure address = new Structure();
+		address.setName("address");
+		address.setNamespace("http://example.com/address");
+		address.add(new SimpleElementImpl<String>("street", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), address));
+		address.add(new SimpleElementImpl<String>("city", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), address));
+		
+		Structure person = new Structure();
+		person.setName("person");
+		person.setNamespace("http://example.com/person");
+		person.add(new SimpleElementImpl<String>("name", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), person));
+		person.add(new ComplexElementImpl("address", address, person));
+		
+		Structure order = new Structure();
+		order.setName("order");
+		order.setNamespace("http://example.com/order");
+		order.add(new SimpleElementImpl<String>("id", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), order));
+		order.add(new ComplexElementImpl("customer", person, order));
+		order.add(new ComplexElementImpl("delivery", address, order));
+		return order;
+	}
+	
+	/**
+	 * Two elements with the same anonymous type, deduplication moves it to a named type
+	 */
+	static Structure newDuplicateType() {
+		Structure root = new Structure();
+		root.setName("duplicates");
+		root.setNamespace("http://example.com/duplicates");
+		for (String name : new String [] { "billing", "shipping" }) {
+			Structure address = new Structure();
+			address.add(new SimpleElementImpl<String>("street", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), address));
+			address.add(new SimpleElementImpl<String>("city", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), address));
+			root.add(new ComplexElementImpl(name, address, root));
+		}
+		return root;
+	}
+	
+	/**
+	 * Keeps the attachments in memory by namespace, in the order they were written
+	 */
+	static class MemoryAttachments implements AttachmentProvider {
+		private Map<String, ByteArrayOutputStream> outputs = new LinkedHashMap<String, ByteArrayOutputStream>();
+		
+		@Override
+		public OutputStream getOutput(String namespace) throws IOException {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			outputs.put(namespace, output);
+			return output;
+		}
+		
+		@Override
+		public URI getURI(String namespace) {
+			return URI.create("urn:" + XSDDefinitionMarshaller.getFileName(namespace));
+		}
+		
+		public List<String> getNamespaces() {
+			return new ArrayList<String>(outputs.keySet());
+		}
+		
+		public Map<String, byte[]> getAttachments() {
+			Map<String, byte[]> attachments = new LinkedHashMap<String, byte[]>();
+			for (Map.Entry<String, ByteArrayOutputStream> output : outputs.entrySet()) {
+				attachments.put(output.getKey(), output.getValue().toByteArray());
+			}
+			return attachments;
+		}
+		
+		void compare(String name, MemoryAttachments other) throws IOException {
+			Map<String, byte[]> expected = getAttachments(), actual = other.getAttachments();
+			if (!expected.keySet().equals(actual.keySet())) {
+				throw new IllegalStateException("The attachments of " + name + " differ: " + expected.keySet() + " versus " + actual.keySet());
+			}
+			for (String namespace : expected.keySet()) {
+				if (!Arrays.equals(expected.get(namespace), actual.get(namespace))) {
+					throw new IllegalStateException("The attachment " + namespace + " of " + name + " differs:\n" + new String(expected.get(namespace), "UTF-8") + "\n---\n" + new String(actual.get(namespace), "UTF-8"));
+				}
+			}
+		}
+	}
+}
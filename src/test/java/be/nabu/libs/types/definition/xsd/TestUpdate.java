@@ -0,0 +1,76 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.w3c.dom.Document;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Updating a single declaration has to result in the same schemas as marshalling the changed type from scratch, only the schema that contains the declaration may be modified
+ */
+public class TestUpdate {
+	public static void main(String...args) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		Structure order = TestStreaming.newMultiNamespaceType();
+		XSDMarshalContext context = marshaller.newContext();
+		Document root = marshaller.build(context, order);
+		
+		// a type in an attachment
+		Structure address = (Structure) order.get("delivery").getType();
+		address.add(new SimpleElementImpl<String>("zip", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), address));
+		Set<Document> modified = marshaller.update(context, address);
+		check("address", marshaller, order, context, root, modified, Collections.singleton(context.getAttachments().get(address.getNamespace())));
+		
+		// the root type
+		order.add(new SimpleElementImpl<String>("reference", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), order));
+		modified = marshaller.update(context, order);
+		check("order", marshaller, order, context, root, modified, Collections.singleton(root));
+		System.out.println("The updated schemas are identical to the rebuilt schemas");
+	}
+	
+	private static void check(String name, XSDDefinitionMarshaller marshaller, Structure type, XSDMarshalContext context, Document root, Set<Document> modified, Set<Document> expectedModified) throws IOException {
+		if (!modified.equals(expectedModified)) {
+			throw new IllegalStateException("The update of " + name + " modified " + modified.size() + " schemas instead of " + expectedModified.size());
+		}
+		XSDMarshalContext rebuiltContext = marshaller.newContext();
+		Document rebuilt = marshaller.build(rebuiltContext, type);
+		compare(name, "the root", marshaller.serialize(rebuilt), marshaller.serialize(root));
+		Map<String, Document> expected = rebuiltContext.getAttachments(), actual = context.getAttachments();
+		if (!expected.keySet().equals(actual.keySet())) {
+			throw new IllegalStateException("The attachments after the update of " + name + " differ: " + expected.keySet() + " versus " + actual.keySet());
+		}
+		for (String namespace : expected.keySet()) {
+			compare(name, namespace, marshaller.serialize(expected.get(namespace)), marshaller.serialize(actual.get(namespace)));
+		}
+	}
+	
+	private static void compare(String name, String schema, byte [] expected, byte [] actual) throws IOException {
+		if (!Arrays.equals(expected, actual)) {
+			throw new IllegalStateException("After the update of " + name + ", " + schema + " differs from a rebuild:\n" + new String(expected, "UTF-8") + "\n---\n" + new String(actual, "UTF-8"));
+		}
+	}
+}
@@ -0,0 +1,157 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.base.ComplexElementImpl;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.definition.xsd.TestStreaming.MemoryAttachments;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * The generated schemas have to be valid xsd, the schema factory rejects them otherwise
+ */
+public class TestValidation {
+	public static void main(String...args) throws Exception {
+		for (boolean streaming : new boolean [] { false, true }) {
+			for (boolean splitRoot : new boolean [] { false, true }) {
+				checkImports("multiple namespaces", TestStreaming.newMultiNamespaceType(), streaming, splitRoot);
+				checkImports("detours", TestParallel.newDetourType(), streaming, splitRoot);
+				checkImports("namespace graph", TestParallel.newNamespaceGraph(10, 2), streaming, splitRoot);
+			}
+		}
+		validate();
+		// attachments that refer back to the root schema
+		for (boolean splitRoot : new boolean [] { false, true }) {
+			for (boolean deduplicate : new boolean [] { false, true }) {
+				compile("detours", TestParallel.newDetourType(), splitRoot, deduplicate);
+				compile("recursion", newRecursiveType(), splitRoot, deduplicate);
+			}
+		}
+		System.out.println("The schemas are valid");
+	}
+	
+	/**
+	 * A schema can not import its own namespace (src-import.1.1), the types in it are already visible
+	 */
+	private static void checkImports(String name, ComplexType type, boolean streaming, boolean splitRoot) throws Exception {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setStreaming(streaming);
+		marshaller.setSplitRoot(splitRoot);
+		MemoryAttachments attachments = new MemoryAttachments();
+		marshaller.setAttachmentProvider(attachments);
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, type);
+		name += (streaming ? " (streaming)" : "") + (splitRoot ? " (split root)" : "");
+		checkImports(name + " root", output.toByteArray());
+		for (Map.Entry<String, byte[]> attachment : attachments.getAttachments().entrySet()) {
+			checkImports(name + " attachment " + attachment.getKey(), attachment.getValue());
+		}
+	}
+	
+	private static void checkImports(String name, byte [] content) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		factory.setNamespaceAware(true);
+		Document document = factory.newDocumentBuilder().parse(new ByteArrayInputStream(content));
+		String targetNamespace = document.getDocumentElement().getAttribute("targetNamespace");
+		NodeList imports = document.getElementsByTagNameNS(XSDDefinitionMarshaller.NAMESPACE, "import");
+		for (int i = 0; i < imports.getLength(); i++) {
+			if (targetNamespace.equals(((Element) imports.item(i)).getAttribute("namespace"))) {
+				throw new IllegalStateException("The " + name + " imports its own namespace:\n" + new String(content, "UTF-8"));
+			}
+		}
+	}
+	
+	/**
+	 * The schema factory rejects references it can not resolve, so a prefix that points to the wrong namespace or a missing import fails the compilation
+	 */
+	private static void compile(String name, ComplexType type, boolean splitRoot, boolean deduplicate) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		marshaller.setSplitRoot(splitRoot);
+		marshaller.setDeduplicateAnonymousTypes(deduplicate);
+		MarshalledSchema schema = marshaller.marshalToBytes(type);
+		try {
+			schema.getValidationSchema();
+		}
+		catch (IOException e) {
+			StringBuilder builder = new StringBuilder(new String(schema.getRoot(), "UTF-8"));
+			for (byte [] attachment : schema.getAttachments().values()) {
+				builder.append("\n---\n").append(new String(attachment, "UTF-8"));
+			}
+			throw new IllegalStateException("The schema for " + name + (splitRoot ? " (split root)" : "") + (deduplicate ? " (deduplicated)" : "") + " does not compile:\n" + builder, e);
+		}
+	}
+	
+	/**
+	 * An anonymous type in the root that contains itself through a type in another namespace, the attachment has to reference the type once it is moved to the root
+	 */
+	static Structure newRecursiveType() {
+		Structure root = new Structure();
+		root.setName("tree");
+		root.setNamespace("http://example.com/tree");
+		Structure node = new Structure();
+		node.add(new SimpleElementImpl<String>("label", SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), node));
+		Structure branch = new Structure();
+		branch.setName("branch");
+		branch.setNamespace("http://example.com/branch");
+		branch.add(new ComplexElementImpl("node", node, branch));
+		node.add(new ComplexElementImpl("branch", branch, node));
+		root.add(new ComplexElementImpl("node", node, root));
+		return root;
+	}
+	
+	/**
+	 * The compiled schema resolves the attachments in memory, an instance that crosses all the namespaces has to be validated against all of them
+	 */
+	private static void validate() throws IOException {
+		Schema schema = new XSDDefinitionMarshaller().newValidationSchema(TestStreaming.newMultiNamespaceType());
+		String valid = "<o:order xmlns:o=\"http://example.com/order\"><id>1</id><customer><name>john</name><address><street>main</street><city>springfield</city></address></customer>"
+			+ "<delivery><street>second</street><city>shelbyville</city></delivery></o:order>";
+		try {
+			schema.newValidator().validate(new StreamSource(new StringReader(valid)));
+		}
+		catch (SAXException e) {
+			throw new IllegalStateException("The valid instance was rejected", e);
+		}
+		// the city of the nested address (in the third namespace) is missing
+		String invalid = valid.replace("<city>springfield</city>", "");
+		try {
+			schema.newValidator().validate(new StreamSource(new StringReader(invalid)));
+			throw new IllegalStateException("The invalid instance was accepted");
+		}
+		catch (SAXException e) {
+			// expected
+		}
+	}
+}
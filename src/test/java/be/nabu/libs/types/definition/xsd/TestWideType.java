@@ -0,0 +1,141 @@
+/*
+* Copyright (C) 2016 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.definition.xsd;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
+import be.nabu.libs.types.base.Choice;
+import be.nabu.libs.types.base.SimpleElementImpl;
+import be.nabu.libs.types.structure.Structure;
+
+/**
+ * Marshals types with an increasing amount of fields, doubling the fields should roughly double the time
+ * This is done for plain fields and for fields that are grouped in large choices
+ */
+public class TestWideType {
+	
+	/**
+	 * The amount of fields in each choice of the choice type
+	 */
+	private static final int CHOICE_SIZE = 250;
+	
+	public static void main(String...args) throws IOException {
+		int [] sizes = new int [] { 625, 1250, 2500, 5000 };
+		check(newWideType(sizes[0]), sizes[0], 0);
+		check(newWideChoiceType(sizes[0]), sizes[0], (sizes[0] + CHOICE_SIZE - 1) / CHOICE_SIZE);
+		time(sizes, false);
+		time(sizes, true);
+	}
+	
+	private static void time(int [] sizes, boolean choices) throws IOException {
+		// warm up
+		for (int i = 0; i < 5; i++) {
+			marshal(choices ? newWideChoiceType(sizes[sizes.length - 1]) : newWideType(sizes[sizes.length - 1]));
+		}
+		long previous = 0;
+		for (int size : sizes) {
+			Structure structure = choices ? newWideChoiceType(size) : newWideType(size);
+			long started = System.nanoTime();
+			int length = 0;
+			for (int i = 0; i < 10; i++) {
+				length = marshal(structure);
+			}
+			long elapsed = (System.nanoTime() - started) / 10;
+			System.out.println(size + (choices ? " fields in choices: " : " fields: ") + (elapsed / 1000) + "us (" + length + " bytes)" + (previous > 0 ? ", x" + String.format("%.2f", (double) elapsed / previous) + " compared to half the fields" : ""));
+			previous = elapsed;
+		}
+	}
+	
+	private static int marshal(Structure structure) throws IOException {
+		return toBytes(structure).length;
+	}
+	
+	private static byte [] toBytes(Structure structure) throws IOException {
+		XSDDefinitionMarshaller marshaller = new XSDDefinitionMarshaller();
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		marshaller.marshal(output, structure);
+		return output.toByteArray();
+	}
+	
+	/**
+	 * Every field has to be written exactly once and the choices have to be kept
+	 */
+	private static void check(Structure structure, int fields, int choices) throws IOException {
+		String schema = new String(toBytes(structure), "UTF-8");
+		for (int i = 0; i < fields; i++) {
+			int index = schema.indexOf("name=\"field" + i + "\"");
+			if (index < 0 || schema.indexOf("name=\"field" + i + "\"", index + 1) >= 0) {
+				throw new IllegalStateException("The field " + i + " is not written exactly once");
+			}
+		}
+		int found = count(schema, "<choice");
+		if (found != choices) {
+			throw new IllegalStateException("Expected " + choices + " choices but found " + found);
+		}
+		// a choice can only contain its own fields
+		int start = schema.indexOf("<choice");
+		if (start >= 0) {
+			String first = schema.substring(start, schema.indexOf("</choice>", start));
+			if (count(first, "<element") != Math.min(CHOICE_SIZE, fields)) {
+				throw new IllegalStateException("The first choice does not contain " + CHOICE_SIZE + " fields");
+			}
+		}
+	}
+	
+	private static int count(String content, String part) {
+		int count = 0;
+		int index = content.indexOf(part);
+		while (index >= 0) {
+			count++;
+			index = content.indexOf(part, index + part.length());
+		}
+		return count;
+	}
+	
+	public static Structure newWideType(int size) {
+		Structure structure = new Structure();
+		structure.setName("wide");
+		structure.setNamespace("http://example.com/wide");
+		for (int i = 0; i < size; i++) {
+			structure.add(new SimpleElementImpl<String>("field" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure));
+		}
+		return structure;
+	}
+	
+	/**
+	 * The fields are grouped in choices of CHOICE_SIZE options each
+	 * Like newWideType() this is also used by the benchmarks
+	 */
+	public static Structure newWideChoiceType(int size) {
+		Structure structure = newWideType(0);
+		structure.setName("wideChoice");
+		Choice choice = null;
+		for (int i = 0; i < size; i++) {
+			if (i % CHOICE_SIZE == 0) {
+				choice = new Choice();
+				structure.addGroup(choice);
+			}
+			SimpleElementImpl<String> element = new SimpleElementImpl<String>("field" + i, SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class), structure);
+			structure.add(element);
+			choice.add(element);
+		}
+		return structure;
+	}
+}